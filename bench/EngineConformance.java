@@ -0,0 +1,72 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Runs every script of the conformance corpus on each way of executing it
+ * and reports the scripts whose outcome differs from the tree's: the result
+ * and variables, or the error. Scripts that do not compile are skipped,
+ * compiling being shared by all engines.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out EngineConformance [bench/conformance.txt]
+ *
+ * Exits with status 1 if any script differs.
+ */
+
+public class EngineConformance {
+	private static String outcome(CompiledScript script, Engine engine) {
+		ExecutionContext context = new ExecutionContext();
+		context.setEngine(engine);
+		try {
+			return script.execute(context) + " " + context.getVariables();
+		} catch (InterpreterException err) {
+			return "error: " + err.getMessage();
+		} catch (Error err) {
+			return "error: " + err;
+		}
+	}
+
+	public static void main(String[] arguments) throws Exception {
+		List<String> lines = Files.readAllLines(Paths.get(arguments.length == 0 ? "bench/conformance.txt" : arguments[0]), StandardCharsets.UTF_8);
+		Interpreter interpreter = new Interpreter(CustomOperators.DEFAULT, null);
+		int scripts = 0;
+		int differ = 0;
+		for (String line : lines) {
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			CompiledScript script;
+			try {
+				script = interpreter.compile(line.replace("\\n", "\n"));
+			} catch (InterpreterException err) {
+				continue;
+			}
+			scripts++;
+
+			JitCompiler.setForceInterpret(true);
+			String tree = outcome(script, Engine.tree);
+			JitCompiler.setForceInterpret(false);
+			int threshold = JitCompiler.getThreshold();
+			JitCompiler.setThreshold(0);
+			String compiled = outcome(script, Engine.tree);
+			JitCompiler.setThreshold(threshold);
+			String opcodes = outcome(script, Engine.opcodes);
+			String parallel = outcome(script, Engine.parallel);
+
+			if (!tree.equals(compiled) || !tree.equals(opcodes) || !tree.equals(parallel)) {
+				differ++;
+				System.out.println(line);
+				System.out.println("  tree:     " + tree);
+				System.out.println("  compiled: " + compiled);
+				System.out.println("  opcodes:  " + opcodes);
+				System.out.println("  parallel: " + parallel);
+			}
+		}
+		System.out.println(scripts + " scripts, " + differ + " differ");
+		if (differ != 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmarks for the lexer, parser and operators.
+ *
+ * The interpreter lives in the default package, which JMH cannot generate
+ * benchmarks for, so this is a small harness in the same spirit: timed
+ * warmup and measurement iterations on one thread, reporting the score in
+ * ops/s and the allocation per operation as measured by the thread's
+ * allocated-bytes counter (what JMH's gc profiler reports as
+ * gc.alloc.rate.norm).
+ *
+ * Build both source roots and run:
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out InterpreterBenchmark [-wi 3] [-i 5] [-r 1] [regex]
+ */
+
+public class InterpreterBenchmark {
+	private static volatile Object sink;
+
+	abstract static class Benchmark {
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		abstract Object run() throws Exception;
+	}
+
+	private static String arithmeticChain(int terms) {
+		return arithmeticChain(terms, null);
+	}
+
+	/* Uses the variable as every other operand when given, so nothing folds. */
+	private static String arithmeticChain(int terms, String variable) {
+		StringBuilder str = new StringBuilder("x = 1");
+		String[] ops = {" + ", " * ", " - ", " / ", " % "};
+		for (int i = 1; i < terms; i++) {
+			str.append(ops[i % ops.length]);
+			if (variable != null && i % 2 == 0) {
+				str.append(variable);
+			} else {
+				str.append(i % 9 + 1);
+			}
+		}
+		return str.toString();
+	}
+
+	private static String nested(int depth) {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i != depth; i++) {
+			str.append("(").append(i).append(" + ");
+		}
+		str.append("1");
+		for (int i = 0; i != depth; i++) {
+			str.append(")");
+		}
+		return str.toString();
+	}
+
+	private static String sequence(int length) {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i != length; i++) {
+			str.append(i == 0 ? "" : ", ").append(i);
+		}
+		return str.toString();
+	}
+
+	static List<Benchmark> benchmarks() throws InterpreterException, IOException {
+		final Interpreter interpreter = new Interpreter();
+		final ExecutionContext context = new ExecutionContext();
+		List<Benchmark> benchmarks = new ArrayList<>();
+
+		final String source = arithmeticChain(2000) + "; y = x >= 10 ? 'a' + x : !x && x != '3'; z = [1, 2, 3]";
+		final OperatorStore operators = CustomOperators.DEFAULT;
+		benchmarks.add(new Benchmark("lookup.operatorStore") {
+			Object run() {
+				int found = 0;
+				for (int i = 0, KLength = source.length(); i != KLength; i++) {
+					found += operators.get(source, i).size();
+				}
+				return found;
+			}
+		});
+
+		final String chain = arithmeticChain(500);
+		final Interpreter uncached = new Interpreter(CustomOperators.DEFAULT, null);
+		benchmarks.add(new Benchmark("compile.arithmeticChain500") {
+			Object run() throws InterpreterException {
+				return uncached.compile(chain);
+			}
+		});
+		benchmarks.add(new Benchmark("interpret.arithmeticChain500.uncached") {
+			Object run() {
+				return uncached.interpret(chain, context);
+			}
+		});
+		benchmarks.add(new Benchmark("interpret.arithmeticChain500.cached") {
+			Object run() {
+				return interpreter.interpret(chain, context);
+			}
+		});
+		final CompiledScript compiledChain = interpreter.compile(chain);
+		benchmarks.add(new Benchmark("execute.arithmeticChain500") {
+			Object run() throws InterpreterException {
+				return compiledChain.execute(context);
+			}
+		});
+		final CompiledScript variableChain = interpreter.compile("v = 3; " + arithmeticChain(500, "v"));
+		benchmarks.add(new Benchmark("execute.variableChain500") {
+			Object run() throws InterpreterException {
+				return variableChain.execute(context);
+			}
+		});
+		benchmarks.add(new Benchmark("execute.variableChain500.interpreted") {
+			Object run() throws InterpreterException {
+				JitCompiler.setForceInterpret(true);
+				try {
+					return variableChain.execute(context);
+				} finally {
+					JitCompiler.setForceInterpret(false);
+				}
+			}
+		});
+		final ExecutionContext limited = new ExecutionContext();
+		limited.setLimits(ExecutionLimits.NONE.withOperations(1 << 20).withTimeout(1, TimeUnit.SECONDS));
+		benchmarks.add(new Benchmark("execute.variableChain500.limited") {
+			Object run() throws InterpreterException {
+				return variableChain.execute(limited);
+			}
+		});
+		final ExecutionContext metered = new ExecutionContext();
+		metered.setListener(new InterpreterMetrics());
+		benchmarks.add(new Benchmark("execute.variableChain500.metrics") {
+			Object run() throws InterpreterException {
+				return variableChain.execute(metered);
+			}
+		});
+
+		final CompiledScript common = interpreter.compile("a = 3; b = 4; a * b; (a * b + 1) * (a * b + 1) - (a * b + 1) / (a * b - 1)");
+		benchmarks.add(new Benchmark("execute.commonSubexpressions") {
+			Object run() throws InterpreterException {
+				return common.execute(context);
+			}
+		});
+
+		for (final int depth : new int[] {32, 512}) {
+			final String nested = nested(depth);
+			benchmarks.add(new Benchmark("compile.nestedParentheses" + depth) {
+				Object run() throws InterpreterException {
+					return uncached.compile(nested);
+				}
+			});
+		}
+
+		final CompiledScript ternary = interpreter.compile("t = 7; t > 5 ? (t < 10 ? t * 2 : t - 1) : (t == 0 ? 0 : -t)");
+		benchmarks.add(new Benchmark("execute.ternary") {
+			Object run() throws InterpreterException {
+				return ternary.execute(context);
+			}
+		});
+
+		final CompiledScript guard = interpreter.compile("g = 0; g > 1 && (" + arithmeticChain(200, "g").substring(4) + ") > 0 || g == 0 ? 1 : (" + arithmeticChain(200, "g").substring(4) + ")");
+		benchmarks.add(new Benchmark("execute.shortCircuitGuard") {
+			Object run() throws InterpreterException {
+				return guard.execute(context);
+			}
+		});
+
+		final CompiledScript array = interpreter.compile("[" + sequence(100) + "]");
+		benchmarks.add(new Benchmark("execute.arrayLiteral100") {
+			Object run() throws InterpreterException {
+				return array.execute(context);
+			}
+		});
+
+		context.setVariable("arr", interpreter.compile("[" + sequence(50) + "]").execute(context));
+		final CompiledScript property = interpreter.compile("arr.missing");
+		benchmarks.add(new Benchmark("execute.propertyAccess") {
+			Object run() throws InterpreterException {
+				return property.execute(context);
+			}
+		});
+
+		final CompiledScript equality = interpreter.compile("1 == '1' && true == 1 && '' == false && null == undefined && '2' != 3 && 0 == false");
+		benchmarks.add(new Benchmark("execute.equalityCoercion") {
+			Object run() throws InterpreterException {
+				return equality.execute(context);
+			}
+		});
+
+		final CompiledScript rules = interpreter.compile("age = 42; country = 'NZ'; tier = 'silver'; score = 710; "
+			+ "(age >= 18 && age < 65) && (country == 'NZ' || country == 'AU') && tier != 'gold' && score > 650 && score / 10 == 71 && age % 2 === 0 ? 'approve' : 'review'");
+		benchmarks.add(new Benchmark("execute.comparisonRules") {
+			Object run() throws InterpreterException {
+				return rules.execute(context);
+			}
+		});
+		benchmarks.add(new Benchmark("execute.comparisonRules.interpreted") {
+			Object run() throws InterpreterException {
+				JitCompiler.setForceInterpret(true);
+				try {
+					return rules.execute(context);
+				} finally {
+					JitCompiler.setForceInterpret(false);
+				}
+			}
+		});
+
+		StringBuilder appends = new StringBuilder("s = ''");
+		for (int i = 0; i != 500; i++) {
+			appends.append("; s += 'item ").append(i).append(", '");
+		}
+		/* The comparison reads the whole string once. */
+		final CompiledScript appendStrings = interpreter.compile(appends.append("; s == ''").toString());
+		benchmarks.add(new Benchmark("execute.appends500") {
+			Object run() throws InterpreterException {
+				return appendStrings.execute(context);
+			}
+		});
+
+		StringBuilder bootstrap = new StringBuilder();
+		for (int i = 0; i != 2000; i++) {
+			bootstrap.append("v").append(i).append(" = [").append(i).append(", 'name ").append(i).append("', [").append(i).append(" * 2, true]]; ");
+		}
+		final String bootstrapText = bootstrap.toString();
+		final Path snapshot = Files.createTempFile("bootstrap", ".snapshot");
+		snapshot.toFile().deleteOnExit();
+		ExecutionContext bootstrapped = new ExecutionContext();
+		uncached.interpret(bootstrapText, bootstrapped);
+		ContextSnapshot.save(bootstrapped, snapshot);
+		benchmarks.add(new Benchmark("snapshot.bootstrap2000") {
+			Object run() throws InterpreterException {
+				return uncached.interpret(bootstrapText, new ExecutionContext());
+			}
+		});
+		benchmarks.add(new Benchmark("snapshot.restore2000") {
+			Object run() throws IOException {
+				ExecutionContext restored = new ExecutionContext();
+				ContextSnapshot.restore(snapshot, restored);
+				return restored;
+			}
+		});
+
+		final GenericVar numbers = new GenericVar(Type.object, "");
+		for (int i = 0; i != 100000; i++) {
+			numbers.addProperty(GenericVar.of(i), GenericVar.of(i % 97 * 0.1));
+		}
+		final Interpreter arrays = new Interpreter();
+		/* What hosts did before: one execution per element. */
+		benchmarks.add(new Benchmark("array.map100k.perElement") {
+			Object run() throws InterpreterException {
+				CompiledScript script = arrays.compile("x * 3 + 1");
+				GenericVar[] results = new GenericVar[100000];
+				for (Map.Entry<GenericVar, GenericVar> element : numbers.getProperties().entrySet()) {
+					arrays.setVariable("x", element.getValue());
+					results[(int) element.getKey().getNumber()] = script.execute(arrays.getContext());
+				}
+				return GenericVar.array(results, results.length);
+			}
+		});
+		benchmarks.add(new Benchmark("array.map100k") {
+			Object run() throws InterpreterException {
+				return ArrayOperations.map(arrays, numbers, "x * 3 + 1");
+			}
+		});
+		benchmarks.add(new Benchmark("array.reduce100k") {
+			Object run() throws InterpreterException {
+				return ArrayOperations.reduce(arrays, numbers, "a + b");
+			}
+		});
+		benchmarks.add(new Benchmark("array.sum100k") {
+			Object run() throws InterpreterException {
+				return ArrayOperations.sum(numbers);
+			}
+		});
+		benchmarks.add(new Benchmark("array.sort100k") {
+			Object run() throws InterpreterException {
+				return ArrayOperations.sort(arrays, numbers, "a - b");
+			}
+		});
+
+		final ExecutionContext opcodes = new ExecutionContext();
+		opcodes.setEngine(Engine.opcodes);
+		final ExecutionContext parallel = new ExecutionContext();
+		parallel.setEngine(Engine.parallel);
+		StringBuilder fields = new StringBuilder("v = 3");
+		for (int i = 0; i != 16; i++) {
+			fields.append("; f").append(i).append(" = ").append(arithmeticChain(200, "v").substring(4));
+		}
+		String[][] engineScripts = {
+			{"variableChain500", "v = 3; " + arithmeticChain(500, "v")},
+			{"commonSubexpressions", "a = 3; b = 4; a * b; (a * b + 1) * (a * b + 1) - (a * b + 1) / (a * b - 1)"},
+			{"ternary", "t = 7; t > 5 ? (t < 10 ? t * 2 : t - 1) : (t == 0 ? 0 : -t)"},
+			{"assignments", "n = 0; n += 3; n *= 2; n++; m = n % 4; n - m"},
+			{"derivedFields16", fields.toString()}
+		};
+		for (String[] engineScript : engineScripts) {
+			final CompiledScript script = uncached.compile(engineScript[1]);
+			benchmarks.add(new Benchmark("engine." + engineScript[0] + ".tree") {
+				Object run() throws InterpreterException {
+					JitCompiler.setForceInterpret(true);
+					try {
+						return script.execute(context);
+					} finally {
+						JitCompiler.setForceInterpret(false);
+					}
+				}
+			});
+			benchmarks.add(new Benchmark("engine." + engineScript[0] + ".compiled") {
+				Object run() throws InterpreterException {
+					return script.execute(context);
+				}
+			});
+			benchmarks.add(new Benchmark("engine." + engineScript[0] + ".opcodes") {
+				Object run() throws InterpreterException {
+					return script.execute(opcodes);
+				}
+			});
+			/* Only the calling thread's allocation is counted. */
+			benchmarks.add(new Benchmark("engine." + engineScript[0] + ".parallel") {
+				Object run() throws InterpreterException {
+					return script.execute(parallel);
+				}
+			});
+		}
+
+		return benchmarks;
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Returns {operations, nanoseconds, allocated bytes} for one iteration.
+	 */
+	private static long[] iteration(Benchmark benchmark, long nanos) throws Exception {
+		long operations = 0;
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long end = start + nanos;
+		long now;
+		do {
+			sink = benchmark.run();
+			operations++;
+		} while ((now = System.nanoTime()) < end);
+		return new long[] {operations, now - start, allocatedBytes() - allocated};
+	}
+
+	private static void measure(Benchmark benchmark, int warmups, int iterations, long nanos) throws Exception {
+		Object result = benchmark.run();
+		if (result instanceof GenericVar && ((GenericVar) result).getType() == Type.string && ((GenericVar) result).get().endsWith("Program Terminated.")) {
+			System.out.printf("%-34s skipped: %s%n", benchmark.name, ((GenericVar) result).get().replace('\n', ' '));
+			return;
+		}
+		for (int i = 0; i != warmups; i++) {
+			iteration(benchmark, nanos);
+		}
+		double[] scores = new double[iterations];
+		long operations = 0;
+		long elapsed = 0;
+		long allocated = 0;
+		for (int i = 0; i != iterations; i++) {
+			long[] sample = iteration(benchmark, nanos);
+			scores[i] = sample[0] * 1e9 / sample[1];
+			operations += sample[0];
+			elapsed += sample[1];
+			allocated += sample[2];
+		}
+		double mean = 0;
+		for (double score : scores) {
+			mean += score / iterations;
+		}
+		double variance = 0;
+		for (double score : scores) {
+			variance += (score - mean) * (score - mean) / Math.max(1, iterations - 1);
+		}
+		System.out.printf(Locale.ROOT, "%-34s %14.1f +- %10.1f ops/s %12.1f B/op %10.1f MB/s%n",
+				benchmark.name, mean, Math.sqrt(variance), (double) allocated / operations, allocated * 1e9 / elapsed / (1 << 20));
+	}
+
+	/**
+	 * Throughput of Interpreter.interpretAll with 1 up to all available
+	 * cores, to see how batch evaluation scales.
+	 */
+	private static void measureBatch(int iterations, long nanos) throws Exception {
+		Interpreter interpreter = new Interpreter();
+		List<String> scripts = new ArrayList<>();
+		for (int i = 0; i != 1000; i++) {
+			scripts.add("x = " + i + "; y = x * 2 + 1; y > 100 ? 'big' : 'small'");
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				long scriptsRun = 0;
+				long start = System.nanoTime();
+				long end = start + nanos * iterations;
+				long now;
+				do {
+					sink = interpreter.interpretAll(scripts, executor);
+					scriptsRun += scripts.size();
+				} while ((now = System.nanoTime()) < end);
+				System.out.printf(Locale.ROOT, "%-34s %14.1f scripts/s%n", "batch.interpretAll threads=" + threads, scriptsRun * 1e9 / (now - start));
+			} finally {
+				executor.shutdown();
+			}
+			if (threads < cores && threads * 2 > cores) {
+				threads = cores / 2;
+			}
+		}
+	}
+
+	public static void main(String[] arguments) throws Exception {
+		int warmups = 3;
+		int iterations = 5;
+		double seconds = 1;
+		Pattern filter = Pattern.compile(".*");
+		for (int i = 0; i != arguments.length; i++) {
+			switch (arguments[i]) {
+				case "-wi": warmups = Integer.parseInt(arguments[++i]); break;
+				case "-i": iterations = Integer.parseInt(arguments[++i]); break;
+				case "-r": seconds = Double.parseDouble(arguments[++i]); break;
+				default: filter = Pattern.compile(arguments[i]);
+			}
+		}
+		long nanos = (long) (seconds * 1e9);
+		for (Benchmark benchmark : benchmarks()) {
+			if (filter.matcher(benchmark.name).find()) {
+				measure(benchmark, warmups, iterations, nanos);
+			}
+		}
+		if (filter.matcher("batch.interpretAll").find()) {
+			measureBatch(iterations, nanos);
+		}
+	}
+}
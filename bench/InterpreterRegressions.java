@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Checks of behavior that has been broken before, each comparing what the
+ * interpreter does with what it should do.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out InterpreterRegressions
+ *
+ * Exits with status 1 if any check fails.
+ */
+
+public class InterpreterRegressions {
+	private static int failures = 0;
+
+	private static void check(String name, Object actual, Object expected) {
+		if (!String.valueOf(actual).equals(String.valueOf(expected))) {
+			failures++;
+			System.out.println(name + ": expected " + expected + ", got " + actual);
+		}
+	}
+
+	/* Host assignments past the frame's first slots make it grow. */
+	private static void hostVariablesGrowTheFrame() {
+		Interpreter interpreter = new Interpreter();
+		for (int i = 0; i != 40; i++) {
+			interpreter.setVariable("v" + i, GenericVar.of(i));
+		}
+		check("host variables", interpreter.interpret("v0 + v15 + v16 + v39"), 70);
+		check("host variable value", interpreter.getContext().getVariables().get("v39"), 39);
+	}
+
+	/* Exponent zeros were once trimmed with the mantissa's: 1e10 printed 1.0E1. */
+	private static void numbersPrintWhole() {
+		Interpreter interpreter = new Interpreter();
+		check("large literal", interpreter.interpret("12345678"), "12345678");
+		check("larger literal", interpreter.interpret("10000000000"), "10000000000");
+		check("large product", interpreter.interpret("100000000 * 100"), "10000000000");
+		check("largest exact integer", interpreter.interpret("9007199254740992"), "9007199254740992");
+		check("past exact integers", interpreter.interpret("9007199254740992 * 10"), "9.007199254740992E16");
+		check("exponent zeros", interpreter.interpret("10000000000 * 10000000000 * 10000000000"), "1E30");
+		check("small exponent", interpreter.interpret("1 / 10000000000"), "1E-10");
+		check("fraction", interpreter.interpret("10 / 4"), "2.5");
+		check("negative zero", interpreter.interpret("-0"), "-0");
+	}
+
+	/* A statement spanning many reads was once parsed again after each read. */
+	private static void longStatementsStream() throws Exception {
+		StringBuilder source = new StringBuilder("s = `");
+		for (int i = 0; i != 200000; i++) {
+			source.append("abcdefghi;\n");
+		}
+		source.append("`; t = (1 +\n2);\nt * 2");
+		Interpreter interpreter = new Interpreter();
+		ScriptReader reader = new ScriptReader(interpreter, new StringReader(source.toString()));
+		int statements = 0;
+		GenericVar result = null;
+		for (CompiledScript statement = reader.next(); statement != null; statement = reader.next()) {
+			result = statement.execute(interpreter.getContext());
+			statements++;
+		}
+		check("streamed statements", statements, 3);
+		check("streamed result", result, 6);
+		check("streamed string", interpreter.interpret("s").get().length(), 2200000);
+	}
+
+	/* Each segment once held an equal share, too small for large sources. */
+	private static void largeSourcesAreCached() throws InterpreterException {
+		StringBuilder source = new StringBuilder("x = `");
+		for (int i = 0; i != 900; i++) {
+			source.append('x');
+		}
+		source.append('`');
+		ScriptCache cache = new ScriptCache(1000);
+		Interpreter interpreter = new Interpreter(CustomOperators.DEFAULT, cache);
+		interpreter.compile(source.toString());
+		interpreter.compile(source.toString());
+		check("large source hits", cache.getHitCount(), 1);
+		for (int i = 0; i != 100; i++) {
+			interpreter.compile("y" + i + " = " + i);
+		}
+		check("bounded weight", cache.weight() <= 1000, true);
+		check("bounded evictions", cache.getEvictionCount() > 0, true);
+	}
+
+	/* A rope once counted as one value whatever its length. */
+	private static void ropesChargeTheirLength() {
+		StringBuilder source = new StringBuilder("s = 'x'");
+		for (int i = 0; i != 27; i++) {
+			source.append("; s += s");
+		}
+		source.append("; 1");
+		Interpreter interpreter = new Interpreter();
+		interpreter.setLimits(ExecutionLimits.NONE.withValues(1000).withAllocation(1 << 20));
+		check("doubling rope", interpreter.interpret(source.toString()).get(), "Allocation limit of 1048576 exceeded\nProgram Terminated.");
+		check("doubled length", interpreter.interpret("s").get().length(), 1 << 20);
+		interpreter.setLimits(ExecutionLimits.NONE.withAllocation(6));
+		check("array elements", interpreter.interpret("a = [1, 2, 3]; b = [4, 5, 6]; 1").get(), "Allocation limit of 6 exceeded\nProgram Terminated.");
+	}
+
+	/* Restores the payload behind a valid header and names what it throws. */
+	private static String restore(ByteBuffer payload) throws IOException {
+		payload.flip();
+		byte[] image = new byte[16 + payload.remaining()];
+		payload.get(image, 16, image.length - 16);
+		CRC32 crc = new CRC32();
+		crc.update(image, 16, image.length - 16);
+		ByteBuffer.wrap(image).putInt(0x4A534E50).putInt(1).putInt(image.length - 16).putInt((int) crc.getValue());
+		Path file = Files.createTempFile("snapshot", ".bin");
+		try {
+			Files.write(file, image);
+			ContextSnapshot.restore(file, new Interpreter().getContext());
+			return "restored";
+		} catch (IOException err) {
+			return "IOException";
+		} catch (RuntimeException err) {
+			return err.getClass().getSimpleName();
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/* Corrupt counts and references once escaped as unchecked exceptions or nulls. */
+	private static void corruptSnapshotsFail() throws IOException {
+		check("negative name length", restore(ByteBuffer.allocate(64).putInt(1).putInt(-1)), "IOException");
+		check("name past the end", restore(ByteBuffer.allocate(64).putInt(1).putInt(1000)), "IOException");
+		check("negative property count", restore(ByteBuffer.allocate(64).putInt(1).putInt(1).put((byte) 'a').put((byte) 5).putInt(0).putInt(-1)), "IOException");
+		check("negative item count", restore(ByteBuffer.allocate(64).putInt(1).putInt(1).put((byte) 'a').put((byte) 7).putInt(-1)), "IOException");
+		check("reference to itself", restore(ByteBuffer.allocate(64).putInt(1).putInt(1).put((byte) 'a').put((byte) 7).putInt(1).put((byte) 8).putInt(0)), "IOException");
+		check("reference ahead", restore(ByteBuffer.allocate(64).putInt(1).putInt(1).put((byte) 'a').put((byte) 8).putInt(3)), "IOException");
+		check("valid payload", restore(ByteBuffer.allocate(64).putInt(1).putInt(1).put((byte) 'a').put((byte) 7).putInt(1).put((byte) 3).putDouble(2)), "restored");
+		ByteBuffer deep = ByteBuffer.allocate(600000).putInt(1).putInt(1).put((byte) 'a');
+		for (int i = 0; i != 100000; i++) {
+			deep.put((byte) 7).putInt(1);
+		}
+		check("deeply nested value", restore(deep.put((byte) 0)), "IOException");
+	}
+
+	/* Nested values were once written and read without a bound on their depth. */
+	private static void snapshotsRoundTrip() throws Exception {
+		GenericVar shared = GenericVar.array(new GenericVar[] {GenericVar.of(1), new GenericVar(Type.string, "two")}, 2);
+		GenericVar inner = GenericVar.array(new GenericVar[] {shared, new GenericVar(Type.string, "x")}, 2);
+		ExecutionContext context = new ExecutionContext();
+		context.setVariable("s", shared);
+		context.setVariable("t", shared);
+		context.setVariable("n", GenericVar.array(new GenericVar[] {GenericVar.of(3), inner}, 2));
+		context.setVariable("pair", new GenericVar(shared, GenericVar.of(4)));
+		context.setVariable("items", Sequence.of(Arrays.asList(shared, GenericVar.TRUE, GenericVar.UNDEFINED)));
+		ExecutionContext restored = new ExecutionContext();
+		Path file = Files.createTempFile("snapshot", ".bin");
+		try {
+			ContextSnapshot.save(context, file);
+			ContextSnapshot.restore(file, restored);
+		} finally {
+			Files.delete(file);
+		}
+		Map<String, GenericVar> variables = restored.getVariables();
+		GenericVar s = variables.get("s");
+		check("restored number", element(variables.get("n"), 0), 3);
+		check("restored nested text", element(variables.get("n"), 1, 1), "\"x\"");
+		check("restored nested element", element(variables.get("n"), 1, 0, 1), "\"two\"");
+		check("restored sharing", variables.get("t") == s, true);
+		check("restored nested sharing", element(variables.get("n"), 1, 0) == s, true);
+		check("restored tuple", variables.get("pair").getFirst() == s && variables.get("pair").getSecond().getNumber() == 4, true);
+		check("restored sequence", ((Sequence) variables.get("items")).getItems().size() == 3 && ((Sequence) variables.get("items")).getItems().get(0) == s, true);
+
+		GenericVar deep = shared;
+		for (int i = 0; i != 5000; i++) {
+			deep = GenericVar.array(new GenericVar[] {deep}, 1);
+		}
+		context.setVariable("deep", deep);
+		check("deep value saved", save(context), "IOException");
+	}
+
+	private static String save(ExecutionContext context) throws IOException {
+		Path file = Files.createTempFile("snapshot", ".bin");
+		try {
+			ContextSnapshot.save(context, file);
+			return "saved";
+		} catch (IOException err) {
+			return "IOException";
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static GenericVar element(GenericVar array, int... path) throws InterpreterException {
+		for (int index : path) {
+			array = array.getProperty(GenericVar.of(index));
+		}
+		return array;
+	}
+
+	private static String mapped(Interpreter interpreter, GenericVar array) {
+		try {
+			return String.valueOf(ArrayOperations.map(interpreter, array, "x * 2").getPropertyCount());
+		} catch (InterpreterException err) {
+			return err.getMessage();
+		}
+	}
+
+	/* Bulk operations once started a budget per element. */
+	private static void bulkOperationsShareOneBudget() {
+		GenericVar[] elements = new GenericVar[10000];
+		for (int i = 0; i != elements.length; i++) {
+			elements[i] = GenericVar.of(i);
+		}
+		GenericVar large = GenericVar.array(elements, elements.length);
+		GenericVar small = GenericVar.array(elements, 100);
+		Interpreter interpreter = new Interpreter();
+		interpreter.setLimits(ExecutionLimits.NONE.withOperations(5000));
+		check("parallel map over budget", mapped(interpreter, large), "Operation limit of 5000 exceeded");
+		check("map under budget", mapped(interpreter, GenericVar.array(elements, 4000)), "4000");
+		interpreter.setLimits(ExecutionLimits.NONE.withOperations(50));
+		check("sequential map over budget", mapped(interpreter, small), "Operation limit of 50 exceeded");
+		interpreter.setLimits(ExecutionLimits.NONE.withOperations(20000));
+		check("map within budget", mapped(interpreter, large), "10000");
+	}
+
+	/* Left associative chains are as deep as they are long, and once ran every engine out of stack. */
+	private static void longChainsRunFlat() throws InterpreterException {
+		Symbols symbols = new Symbols();
+		VariableNode a = new VariableNode("a", symbols.index("a"));
+		Node sum = a;
+		Node negated = a;
+		Node conjunction = a;
+		for (int i = 1; i != 50000; i++) {
+			sum = new BinaryNode(JitSupport.ADD, sum, a);
+			negated = new UnaryNode(JitSupport.NEGATE, negated);
+			conjunction = new BinaryNode(JitSupport.AND, conjunction, a);
+		}
+		Node[] chains = {sum, negated, conjunction};
+		String[] expected = {"50000", "-1", "true"};
+		for (int i = 0; i != chains.length; i++) {
+			Node[] statements = {chains[i]};
+			CompiledScript script = new CompiledScript(statements, symbols.toArray());
+			check("lowered chain " + i, OpcodeProgram.lower(statements) != null, true);
+			check("compiled chain " + i, JitCompiler.compile(statements) != null, true);
+			for (Engine engine : Engine.values()) {
+				check("chain " + i + " on " + engine, chain(script, engine, false), expected[i]);
+			}
+			check("chain " + i + " compiled", chain(script, Engine.tree, true), expected[i]);
+		}
+		check("printed chain", negated.toString().length(), 3 * 49999 + 1);
+	}
+
+	private static String chain(CompiledScript script, Engine engine, boolean compiled) throws InterpreterException {
+		ExecutionContext context = new ExecutionContext();
+		context.setEngine(engine);
+		context.setVariable("a", GenericVar.of(1));
+		int threshold = JitCompiler.getThreshold();
+		JitCompiler.setThreshold(compiled ? 0 : Integer.MAX_VALUE);
+		try {
+			return script.execute(context).toString();
+		} finally {
+			JitCompiler.setThreshold(threshold);
+		}
+	}
+
+	/* The optimizer once kept stores that a later one overwrote before any read. */
+	private static void optimizerFoldsDropsAndShares() throws InterpreterException {
+		Interpreter interpreter = new Interpreter();
+		check("folded", interpreter.compile("1 + 2 * 3").toString(), "7\n");
+		check("dropped", interpreter.compile("x = 1; 2; x = 3; x").toString(), "(x = 3)\nx\n");
+		check("read store kept", interpreter.compile("x = 1; y = x; x = 2").toString(), "(x = 1)\n(y = x)\n(x = 2)\n");
+		check("store reading itself kept", interpreter.compile("x = 1; x = x + 1").toString(), "(x = 1)\n(x = (x + 1))\n");
+		check("dropped store", interpreter.interpret("x = 1; y = 2; x = 3; x + y"), 5);
+		Symbols symbols = new Symbols();
+		VariableNode a = new VariableNode("a", symbols.index("a"));
+		VariableNode b = new VariableNode("b", symbols.index("b"));
+		Node[] statements = {new BinaryNode(JitSupport.ADD, new BinaryNode(JitSupport.MULTIPLY, a, b), new BinaryNode(JitSupport.MULTIPLY, a, b))};
+		Node[] shared = Optimizer.optimize(statements);
+		check("shared", shared[0] instanceof CommonScope, true);
+		ExecutionContext context = new ExecutionContext();
+		context.setVariable("a", GenericVar.of(2));
+		context.setVariable("b", GenericVar.of(3));
+		check("shared value", new CompiledScript(shared, symbols.toArray()).execute(context), 12);
+	}
+
+	/* Each pass of the optimizer once recursed once per operator of a chain. */
+	private static void longChainsCompile() {
+		Interpreter interpreter = new Interpreter();
+		check("long sum", interpreter.interpret("a = 1; " + repeat("a", " + ", 5000)), 5000);
+		check("long shared sum", interpreter.interpret("a = 1; b = 2; " + repeat("a * b", " + ", 5000)), 10000);
+		check("long power", interpreter.interpret(repeat("1", " ** ", 20000)), 1);
+		check("long negation", interpreter.interpret("a = 1; " + repeat("-", " ", 50000) + " a"), 1);
+		check("long conjunction", interpreter.interpret("a = 1; " + repeat("a", " && ", 5000)), true);
+	}
+
+	private static String repeat(String term, String separator, int count) {
+		StringBuilder str = new StringBuilder(term);
+		for (int i = 1; i != count; i++) {
+			str.append(separator).append(term);
+		}
+		return str.toString();
+	}
+
+	/* Assignments once associated to the left, rejecting a = b = 3. */
+	private static void assignmentsChain() {
+		Interpreter interpreter = new Interpreter();
+		check("chained assignment", interpreter.interpret("a = b = 3; a + b"), 6);
+		check("chained compound assignment", interpreter.interpret("a = 1; a += a += 1"), 3);
+		check("chained compound assignments", interpreter.interpret("a = 1; b = 2; a += b += 1; a * 10 + b"), 43);
+		check("assignment to an expression", interpreter.interpret("a + b = 3"), Interpreter.terminated(new InterpreterException("Invalid left-hand side in assignment")));
+	}
+
+	/* Lazy operators were once timed with the operand they evaluated. */
+	private static void lazyOperatorsTimeTheirOwnWork() {
+		final long[] times = new long[2];
+		Interpreter interpreter = new Interpreter();
+		interpreter.setListener(new ExecutionListener() {
+			public void operatorReduced(Operator operator, GenericVar param1, GenericVar param2, GenericVar result, long nanos) {
+				if (operator.getSymbol().equals("&&")) {
+					times[0] += nanos;
+				}
+			}
+
+			public void wrapperEvaluated(Operator wrapper, GenericVar content, GenericVar result, long nanos) {
+				times[1] += nanos;
+			}
+		});
+		check("lazy result", interpreter.interpret("a = 1; a && (" + repeat("a", " + ", 20000) + ")"), true);
+		check("lazy operator time", times[0] < times[1], true);
+	}
+
+	/* A parallel statement failing once had no check that the script reran in order. */
+	private static void parallelFailuresRunInOrder() throws InterpreterException {
+		Interpreter interpreter = new Interpreter();
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i != 40; i++) {
+			source.append("v").append(i).append(" = ").append(repeat("a", " * ", 8)).append(" + ").append(i).append("; ");
+			if (i == 20) {
+				source.append("failed = a + (1 : 2); ");
+			}
+		}
+		CompiledScript failing = interpreter.compile(source.toString());
+		String inOrder = parallel(failing, Engine.tree);
+		check("failing statement in order", inOrder.startsWith("Unexpected colon") && inOrder.contains("v20=276") && !inOrder.contains("v21"), true);
+		check("failing statement in parallel", parallel(failing, Engine.parallel), inOrder);
+		check("failing script in parallel", failing.isParallel(), true);
+		CompiledScript passing = interpreter.compile(source.toString().replace("(1 : 2)", "1"));
+		check("parallel statements", parallel(passing, Engine.parallel), parallel(passing, Engine.tree));
+		CompiledScript small = interpreter.compile("x = a * 2; y = a * 3; z = (1 : 2) + a");
+		check("small script in order", parallel(small, Engine.parallel), parallel(small, Engine.tree));
+		check("small script in parallel", small.isParallel(), false);
+	}
+
+	/* The error or result of the script and the variables it leaves, a being 2. */
+	private static String parallel(CompiledScript script, Engine engine) {
+		ExecutionContext context = new ExecutionContext();
+		context.setEngine(engine);
+		context.setVariable("a", GenericVar.of(2));
+		String outcome;
+		try {
+			outcome = String.valueOf(script.execute(context));
+		} catch (InterpreterException err) {
+			outcome = err.getMessage();
+		}
+		return outcome + " " + context.getVariables();
+	}
+
+	public static void main(String[] arguments) throws Exception {
+		hostVariablesGrowTheFrame();
+		numbersPrintWhole();
+		longStatementsStream();
+		largeSourcesAreCached();
+		ropesChargeTheirLength();
+		corruptSnapshotsFail();
+		snapshotsRoundTrip();
+		bulkOperationsShareOneBudget();
+		longChainsRunFlat();
+		optimizerFoldsDropsAndShares();
+		longChainsCompile();
+		assignmentsChain();
+		lazyOperatorsTimeTheirOwnWork();
+		parallelFailuresRunInOrder();
+		System.out.println(failures == 0 ? "All checks pass" : failures + " checks fail");
+		if (failures != 0) {
+			System.exit(1);
+		}
+	}
+}
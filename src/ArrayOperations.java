@@ -0,0 +1,387 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Bulk operations over arrays for the host, each taking the array and, where
+ * it needs one, a script expression run once per element:
+ * - map(array, "x * 2") and filter(array, "x > 0") see the element as x and
+ *   its index as i.
+ * - reduce(array, "a + b") combines two values a and b.
+ * - sort(array, "a - b") orders a before b when the expression is negative;
+ *   without an expression elements are ordered by their text, undefined
+ *   last.
+ * - sum, min and max convert the elements as Number() would.
+ * Expressions see the interpreter's variables as they are when the operation
+ * starts, and assignments they make are not kept. The interpreter's limits
+ * apply to the operation as a whole: every element's run is charged to one
+ * budget, and the timeout runs from the start of the operation.
+ *
+ * Arrays of KParallelThreshold elements or more are worked through on the
+ * common fork-join pool. The elements are always split the same way, by
+ * their number alone, so a reduction groups its values the same way however
+ * it runs and floating point sums come out the same every time. A reduce
+ * expression that is not associative gets a reproducible result, not the
+ * left to right one. When expressions fail on several elements, the error of
+ * the first of them is thrown.
+ */
+
+final class ArrayOperations {
+	/* Elements a task works through in order; the leaves of every reduction. */
+	private static final int KLeafSize = 1024;
+	/* Smaller arrays are worked through on the calling thread. */
+	private static final int KParallelThreshold = 4096;
+
+	private ArrayOperations() {
+	}
+
+	static GenericVar map(Interpreter interpreter, GenericVar array, String expression) throws InterpreterException {
+		final GenericVar[] elements = elements(array);
+		final Expression script = new Expression(interpreter, expression);
+		final int element = script.symbol("x");
+		final int index = script.symbol("i");
+		final GenericVar[] results = new GenericVar[elements.length];
+		new Operation(elements) {
+			GenericVar leaf(int from, int to) throws InterpreterException {
+				ExecutionContext context = script.newContext();
+				for (int ii = from; ii != to; ii++) {
+					results[ii] = script.evaluate(context, element, elements[ii], index, index == -1 ? null : GenericVar.of(ii));
+				}
+				return null;
+			}
+		}.run();
+		return GenericVar.array(results, results.length);
+	}
+
+	static GenericVar filter(Interpreter interpreter, GenericVar array, String expression) throws InterpreterException {
+		final GenericVar[] elements = elements(array);
+		final Expression script = new Expression(interpreter, expression);
+		final int element = script.symbol("x");
+		final int index = script.symbol("i");
+		final boolean[] kept = new boolean[elements.length];
+		new Operation(elements) {
+			GenericVar leaf(int from, int to) throws InterpreterException {
+				ExecutionContext context = script.newContext();
+				for (int ii = from; ii != to; ii++) {
+					kept[ii] = LogicalOperator.toBoolean(script.evaluate(context, element, elements[ii], index, index == -1 ? null : GenericVar.of(ii)));
+				}
+				return null;
+			}
+		}.run();
+		GenericVar[] results = new GenericVar[elements.length];
+		int count = 0;
+		for (int i = 0; i != elements.length; i++) {
+			if (kept[i]) {
+				results[count++] = elements[i];
+			}
+		}
+		return GenericVar.array(results, count);
+	}
+
+	static GenericVar reduce(Interpreter interpreter, GenericVar array, String expression) throws InterpreterException {
+		final GenericVar[] elements = elements(array);
+		if (elements.length == 0) {
+			throw new InterpreterException("Reduce of empty array with no initial value");
+		}
+		final Expression script = new Expression(interpreter, expression);
+		final int before = script.symbol("a");
+		final int after = script.symbol("b");
+		return new Operation(elements) {
+			GenericVar leaf(int from, int to) throws InterpreterException {
+				ExecutionContext context = script.newContext();
+				GenericVar value = elements[from];
+				for (int ii = from + 1; ii != to; ii++) {
+					value = script.evaluate(context, before, value, after, elements[ii]);
+				}
+				return value;
+			}
+
+			GenericVar combine(GenericVar value1, GenericVar value2) throws InterpreterException {
+				return script.evaluate(script.newContext(), before, value1, after, value2);
+			}
+		}.run();
+	}
+
+	static GenericVar sum(GenericVar array) throws InterpreterException {
+		final GenericVar[] elements = elements(array);
+		return new Operation(elements) {
+			GenericVar leaf(int from, int to) {
+				double sum = 0;
+				for (int ii = from; ii != to; ii++) {
+					sum += UnaryOperator.getExplicitType(elements[ii]);
+				}
+				return GenericVar.of(sum);
+			}
+
+			GenericVar combine(GenericVar value1, GenericVar value2) {
+				return GenericVar.of(value1.getNumber() + value2.getNumber());
+			}
+		}.run(GenericVar.of(0));
+	}
+
+	/** Infinity for an empty array, NaN if an element is not a number. */
+	static GenericVar min(GenericVar array) throws InterpreterException {
+		final GenericVar[] elements = elements(array);
+		return new Operation(elements) {
+			GenericVar leaf(int from, int to) {
+				double min = Double.POSITIVE_INFINITY;
+				for (int ii = from; ii != to; ii++) {
+					min = Math.min(min, UnaryOperator.getExplicitType(elements[ii]));
+				}
+				return GenericVar.of(min);
+			}
+
+			GenericVar combine(GenericVar value1, GenericVar value2) {
+				return GenericVar.of(Math.min(value1.getNumber(), value2.getNumber()));
+			}
+		}.run(GenericVar.of(Double.POSITIVE_INFINITY));
+	}
+
+	/** -Infinity for an empty array, NaN if an element is not a number. */
+	static GenericVar max(GenericVar array) throws InterpreterException {
+		final GenericVar[] elements = elements(array);
+		return new Operation(elements) {
+			GenericVar leaf(int from, int to) {
+				double max = Double.NEGATIVE_INFINITY;
+				for (int ii = from; ii != to; ii++) {
+					max = Math.max(max, UnaryOperator.getExplicitType(elements[ii]));
+				}
+				return GenericVar.of(max);
+			}
+
+			GenericVar combine(GenericVar value1, GenericVar value2) {
+				return GenericVar.of(Math.max(value1.getNumber(), value2.getNumber()));
+			}
+		}.run(GenericVar.of(Double.NEGATIVE_INFINITY));
+	}
+
+	static GenericVar sort(GenericVar array) throws InterpreterException {
+		GenericVar[] elements = elements(array);
+		Comparator<GenericVar> order = new Comparator<GenericVar>() {
+			public int compare(GenericVar value1, GenericVar value2) {
+				boolean undefined1 = value1.getType() == Type.undefined;
+				boolean undefined2 = value2.getType() == Type.undefined;
+				if (undefined1 || undefined2) {
+					return undefined1 == undefined2 ? 0 : undefined1 ? 1 : -1;
+				}
+				return value1.get().compareTo(value2.get());
+			}
+		};
+		if (elements.length < KParallelThreshold) {
+			Arrays.sort(elements, order);
+		} else {
+			Arrays.parallelSort(elements, order);
+		}
+		return GenericVar.array(elements, elements.length);
+	}
+
+	/**
+	 * The sort is stable. When the expression fails, the array is sorted
+	 * again on the calling thread so that the error reported is the first one
+	 * met in that order.
+	 */
+	static GenericVar sort(Interpreter interpreter, GenericVar array, String expression) throws InterpreterException {
+		GenericVar[] elements = elements(array);
+		final Expression script = new Expression(interpreter, expression);
+		final int before = script.symbol("a");
+		final int after = script.symbol("b");
+		final ThreadLocal<ExecutionContext> contexts = new ThreadLocal<ExecutionContext>() {
+			protected ExecutionContext initialValue() {
+				return script.newContext();
+			}
+		};
+		Comparator<GenericVar> order = new Comparator<GenericVar>() {
+			public int compare(GenericVar value1, GenericVar value2) {
+				try {
+					double order = UnaryOperator.getExplicitType(script.evaluate(contexts.get(), before, value1, after, value2));
+					return order < 0 ? -1 : order > 0 ? 1 : 0;
+				} catch (InterpreterException err) {
+					throw new Failure(err);
+				}
+			}
+		};
+		GenericVar[] sorted = elements.clone();
+		try {
+			if (elements.length < KParallelThreshold) {
+				Arrays.sort(sorted, order);
+			} else {
+				try {
+					Arrays.parallelSort(sorted, order);
+				} catch (Failure err) {
+					sorted = elements.clone();
+					Arrays.sort(sorted, order);
+				}
+			}
+		} catch (Failure err) {
+			throw err.mError;
+		} catch (IllegalArgumentException err) {
+			throw new InterpreterException("Inconsistent sort expression: " + expression);
+		}
+		return GenericVar.array(sorted, sorted.length);
+	}
+
+	private static GenericVar[] elements(GenericVar array) throws InterpreterException {
+		if (array.getType() != Type.object || array == GenericVar.NULL) {
+			throw new InterpreterException("Not an array: " + array);
+		}
+		GenericVar[] elements = new GenericVar[array.getPropertyCount()];
+		for (Map.Entry<GenericVar, GenericVar> property : array.getProperties().entrySet()) {
+			GenericVar key = property.getKey();
+			int index = key.getType() == Type.number ? (int) key.getNumber() : -1;
+			if (index < 0 || index >= elements.length || index != key.getNumber() || elements[index] != null) {
+				throw new InterpreterException("Not an array: " + array);
+			}
+			elements[index] = property.getValue();
+		}
+		return elements;
+	}
+
+	/**
+	 * Compiled expression and the interpreter's values of the variables it
+	 * names, each run getting a context of its own and all of them charging
+	 * one budget.
+	 */
+	private static final class Expression {
+		private final Interpreter mInterpreter;
+		private final CompiledScript mScript;
+		private final String[] mSymbols;
+		private final GenericVar[] mCaptured;
+		private final ExecutionLimits.SharedBudget mBudget;
+
+		Expression(Interpreter interpreter, String code) throws InterpreterException {
+			this.mInterpreter = interpreter;
+			this.mScript = interpreter.compile(code);
+			this.mSymbols = mScript.getSymbols();
+			this.mCaptured = new GenericVar[mSymbols.length];
+			for (int i = 0; i != mSymbols.length; i++) {
+				mCaptured[i] = interpreter.getContext().getVariable(mSymbols[i]);
+			}
+			ExecutionLimits limits = interpreter.getContext().getLimits();
+			this.mBudget = limits == null ? null : limits.share();
+		}
+
+		/** Index of the variable in the expression, -1 if it does not use it. */
+		int symbol(String name) {
+			return Arrays.asList(mSymbols).indexOf(name);
+		}
+
+		ExecutionContext newContext() {
+			ExecutionContext context = mInterpreter.newContext();
+			context.shareBudget(mBudget);
+			context.bind(mSymbols);
+			for (int i = 0; i != mSymbols.length; i++) {
+				context.set(i, mCaptured[i]);
+			}
+			return context;
+		}
+
+		GenericVar evaluate(ExecutionContext context, int symbol1, GenericVar value1, int symbol2, GenericVar value2) throws InterpreterException {
+			if (symbol1 != -1) {
+				context.set(symbol1, value1);
+			}
+			if (symbol2 != -1) {
+				context.set(symbol2, value2);
+			}
+			return mScript.execute(context);
+		}
+	}
+
+	/* Carries an expression's error out of a comparator. */
+	private static final class Failure extends RuntimeException {
+		private static final long serialVersionUID = 0;
+		private final InterpreterException mError;
+
+		private Failure(InterpreterException error) {
+			super(error);
+			this.mError = error;
+		}
+	}
+
+	/**
+	 * Work over the elements, as leaves of consecutive elements whose
+	 * results are combined in pairs.
+	 */
+	private abstract static class Operation {
+		private final GenericVar[] mElements;
+		private final boolean mParallel;
+
+		Operation(GenericVar[] elements) {
+			this.mElements = elements;
+			this.mParallel = elements.length >= KParallelThreshold;
+		}
+
+		abstract GenericVar leaf(int from, int to) throws InterpreterException;
+
+		GenericVar combine(GenericVar value1, GenericVar value2) throws InterpreterException {
+			return null;
+		}
+
+		GenericVar run() throws InterpreterException {
+			return run(null);
+		}
+
+		/** Returns empty for an array without elements. */
+		GenericVar run(GenericVar empty) throws InterpreterException {
+			if (mElements.length == 0) {
+				return empty;
+			}
+			Range range = new Range(this, 0, mElements.length);
+			Object result = mParallel ? ForkJoinPool.commonPool().invoke(range) : range.compute();
+			if (result instanceof InterpreterException) {
+				throw (InterpreterException) result;
+			}
+			return (GenericVar) result;
+		}
+	}
+
+	/**
+	 * Elements [from, to) of an operation, split in two on a leaf boundary
+	 * until a single leaf is left. The result is the leaf's or the combined
+	 * value, or the InterpreterException of the first element that failed.
+	 */
+	private static final class Range extends RecursiveTask<Object> {
+		private static final long serialVersionUID = 0;
+		private final Operation mOperation;
+		private final int mFrom;
+		private final int mTo;
+
+		Range(Operation operation, int from, int to) {
+			this.mOperation = operation;
+			this.mFrom = from;
+			this.mTo = to;
+		}
+
+		protected Object compute() {
+			int leaves = (mTo - mFrom + KLeafSize - 1) / KLeafSize;
+			try {
+				if (leaves == 1) {
+					return mOperation.leaf(mFrom, mTo);
+				}
+				int middle = mFrom + leaves / 2 * KLeafSize;
+				Range before = new Range(mOperation, mFrom, middle);
+				Range after = new Range(mOperation, middle, mTo);
+				Object value2;
+				Object value1;
+				if (mOperation.mParallel) {
+					before.fork();
+					value2 = after.compute();
+					value1 = before.join();
+				} else {
+					value1 = before.compute();
+					value2 = after.compute();
+				}
+				if (value1 instanceof InterpreterException) {
+					return value1;
+				}
+				if (value2 instanceof InterpreterException) {
+					return value2;
+				}
+				return mOperation.combine((GenericVar) value1, (GenericVar) value2);
+			} catch (InterpreterException err) {
+				return err;
+			}
+		}
+	}
+}
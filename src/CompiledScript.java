@@ -0,0 +1,660 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Expression tree produced by Interpreter.compile. Nodes are immutable so a
+ * compiled script can be executed any number of times, apart from the type
+ * feedback of binary operator sites, which only decides how fast they run.
+ */
+
+abstract class Node {
+	/**
+	 * Operator nodes down the left operands past which evaluation loops
+	 * instead of recursing. Left associative chains such as a + b + ... + z
+	 * are as deep as they are long, and must not run out of stack.
+	 */
+	static final int KMaxRecursion = 64;
+
+	abstract GenericVar evaluate(ExecutionContext context) throws InterpreterException;
+
+	/**
+	 * The number of operator nodes down the left operands starting at this
+	 * node, this node included.
+	 */
+	int getSpine() {
+		return 0;
+	}
+
+	static GenericVar run(Node[] statements, ExecutionContext context) throws InterpreterException {
+		GenericVar lastAnswer = GenericVar.UNDEFINED;
+		ExecutionListener listener = context.getListener();
+		for (Node statement : statements) {
+			if (listener != null) {
+				listener.statementStarted(statement);
+			}
+			lastAnswer = statement.evaluate(context);
+			if (listener != null) {
+				listener.statementFinished(statement, lastAnswer);
+			}
+		}
+		return lastAnswer;
+	}
+
+	/**
+	 * Evaluates an operand for the operator, rejecting the tuples and
+	 * sequences it does not support.
+	 */
+	static GenericVar operand(Operator operator, Node node, ExecutionContext context) throws InterpreterException {
+		return checked(operator, node.evaluate(context));
+	}
+
+	/**
+	 * Rejects the tuples and sequences the operator does not support.
+	 */
+	static GenericVar checked(Operator operator, GenericVar value) throws InterpreterException {
+		if (value.getType() == Type.tuple && !operator.supportsTuple()) {
+			throw new InterpreterException("Unexpected colon");
+		}
+		if (value.getType() == Type.sequence && !operator.supportsSequence()) {
+			throw new InterpreterException("Unexpected sequence of values");
+		}
+		return value;
+	}
+
+	/** The left operand of a unary or binary node. */
+	static Node left(Node node) {
+		return node instanceof UnaryNode ? ((UnaryNode) node).getOperand() : ((BinaryNode) node).getBefore();
+	}
+
+	/**
+	 * The operator nodes down the left operands starting at the node,
+	 * outermost first, for the passes over the tree to walk in a loop.
+	 */
+	static Node[] spine(Node node) {
+		Node[] spine = new Node[node.getSpine()];
+		for (int i = 0; i != spine.length; i++) {
+			spine[i] = node;
+			node = left(node);
+		}
+		return spine;
+	}
+
+	/** Evaluates the spine starting at the node from the bottom up. */
+	static GenericVar evaluateSpine(Node node, ExecutionContext context) throws InterpreterException {
+		Node[] spine = spine(node);
+		GenericVar value = left(spine[spine.length - 1]).evaluate(context);
+		for (int i = spine.length - 1; i >= 0; i--) {
+			if (spine[i] instanceof UnaryNode) {
+				value = ((UnaryNode) spine[i]).evaluate(context, value);
+			} else {
+				value = ((BinaryNode) spine[i]).evaluate(context, value);
+			}
+		}
+		return value;
+	}
+
+	/** Prints the spine starting at the node without recursing down it. */
+	static String describe(Node node) {
+		Node[] spine = spine(node);
+		StringBuilder str = new StringBuilder();
+		for (Node link : spine) {
+			str.append('(');
+			if (link instanceof UnaryNode && ((UnaryNode) link).getOperator().getOperatorType() != OperatorType.after) {
+				str.append(((UnaryNode) link).getOperator().getSymbol());
+			}
+		}
+		str.append(left(spine[spine.length - 1]));
+		for (int i = spine.length - 1; i >= 0; i--) {
+			if (spine[i] instanceof UnaryNode) {
+				UnaryNode unary = (UnaryNode) spine[i];
+				if (unary.getOperator().getOperatorType() == OperatorType.after) {
+					str.append(unary.getOperator().getSymbol());
+				}
+			} else {
+				BinaryNode binary = (BinaryNode) spine[i];
+				str.append(' ').append(binary.getOperator().getSymbol()).append(' ').append(binary.getAfter());
+			}
+			str.append(')');
+		}
+		return str.toString();
+	}
+}
+
+
+class ValueNode extends Node {
+	private final GenericVar mValue;
+
+	ValueNode(Type type, String value) {
+		this(GenericVar.of(type, value));
+	}
+
+	ValueNode(GenericVar value) {
+		this.mValue = value;
+	}
+
+	GenericVar getValue() {
+		return mValue;
+	}
+
+	GenericVar evaluate(ExecutionContext context) {
+		if (context.getListener() != null) {
+			context.getListener().valueCreated(mValue);
+		}
+		return mValue;
+	}
+
+	public String toString() {
+		return mValue.toString();
+	}
+}
+
+
+class VariableNode extends Node {
+	private final String mName;
+	private final int mSymbol;
+
+	/**
+	 * The symbol is the name's index in the symbols of the script the node is
+	 * compiled into.
+	 */
+	VariableNode(String name, int symbol) {
+		this.mName = name;
+		this.mSymbol = symbol;
+	}
+
+	String getName() {
+		return mName;
+	}
+
+	int getSymbol() {
+		return mSymbol;
+	}
+
+	GenericVar evaluate(ExecutionContext context) {
+		return context.get(mSymbol);
+	}
+
+	GenericVar store(ExecutionContext context, GenericVar value) {
+		return context.set(mSymbol, value);
+	}
+
+	public String toString() {
+		return mName;
+	}
+}
+
+
+class WrapperNode extends Node {
+	private final Operator mWrapper;
+	private final Node[] mStatements;
+
+	WrapperNode(Operator wrapper, Node[] statements) {
+		this.mWrapper = wrapper;
+		this.mStatements = statements;
+	}
+
+	Operator getWrapper() {
+		return mWrapper;
+	}
+
+	Node[] getStatements() {
+		return mStatements;
+	}
+
+	GenericVar evaluate(ExecutionContext context) throws InterpreterException {
+		ExecutionListener listener = context.getListener();
+		ExecutionLimits.ExecutionBudget budget = context.getBudget();
+		if (budget != null) {
+			budget.enter();
+		}
+		long start = listener == null ? 0 : System.nanoTime();
+		GenericVar content = run(mStatements, context);
+		GenericVar value = mWrapper.compute(content);
+		if (listener != null) {
+			listener.wrapperEvaluated(mWrapper, content, value, System.nanoTime() - start);
+		}
+		if (budget != null) {
+			budget.leave();
+			budget.reduced(value);
+		}
+		return value;
+	}
+
+	public String toString() {
+		StringBuilder str = new StringBuilder(mWrapper.getSymbol());
+		for (int i = 0; i != mStatements.length; i++) {
+			str.append(i == 0 ? "" : "; ").append(mStatements[i]);
+		}
+		return str.append(mWrapper.getSecondSymbol()).toString();
+	}
+}
+
+
+class UnaryNode extends Node {
+	private final Operator mOperator;
+	private final Node mOperand;
+	private final VariableNode mTarget;
+	private final int mSpine;
+
+	UnaryNode(Operator operator, Node operand) {
+		this.mOperator = operator;
+		this.mOperand = operand;
+		this.mTarget = operator.assigns() ? (VariableNode) operand : null;
+		this.mSpine = operand.getSpine() + 1;
+	}
+
+	int getSpine() {
+		return mSpine;
+	}
+
+	Operator getOperator() {
+		return mOperator;
+	}
+
+	Node getOperand() {
+		return mOperand;
+	}
+
+	GenericVar evaluate(ExecutionContext context) throws InterpreterException {
+		if (mSpine > KMaxRecursion) {
+			return evaluateSpine(this, context);
+		}
+		return evaluate(context, mOperand.evaluate(context));
+	}
+
+	/** Evaluates the node once its operand has been. */
+	GenericVar evaluate(ExecutionContext context, GenericVar value) throws InterpreterException {
+		checked(mOperator, value);
+		ExecutionListener listener = context.getListener();
+		long start = listener == null ? 0 : System.nanoTime();
+		GenericVar result = apply(context, value);
+		if (listener != null) {
+			listener.operatorReduced(mOperator, value, null, result, System.nanoTime() - start);
+		}
+		if (context.getBudget() != null) {
+			context.getBudget().reduced(result);
+		}
+		return result;
+	}
+
+	private GenericVar apply(ExecutionContext context, GenericVar value) throws InterpreterException {
+		return mTarget == null ? mOperator.compute(value) : mOperator.assign(context, mTarget, value);
+	}
+
+	public String toString() {
+		return describe(this);
+	}
+}
+
+
+class BinaryNode extends Node {
+	/**
+	 * Operand types a site has seen and the operator's specialization for
+	 * them. A site starts without feedback, specializes to the first types it
+	 * sees, and turns generic for good when others show up. The feedback is
+	 * replaced whole, so racing threads at worst redo the work.
+	 */
+	private static class Feedback {
+		private final Type before;
+		private final Type after;
+		private final Specialization specialization;
+
+		Feedback(Type before, Type after, Specialization specialization) {
+			this.before = before;
+			this.after = after;
+			this.specialization = specialization;
+		}
+	}
+
+	private static final Feedback GENERIC = new Feedback(null, null, null);
+
+	private final Operator mOperator;
+	private final Node mBefore;
+	private final Node mAfter;
+	private final VariableNode mTarget;
+	private final boolean mLazy;
+	private final int mSpine;
+	private Feedback mFeedback = null;
+
+	BinaryNode(Operator operator, Node before, Node after) {
+		this.mOperator = operator;
+		this.mBefore = before;
+		this.mAfter = after;
+		this.mTarget = operator.assigns() ? (VariableNode) before : null;
+		this.mLazy = operator.evaluatesLazily();
+		this.mSpine = before.getSpine() + 1;
+	}
+
+	int getSpine() {
+		return mSpine;
+	}
+
+	Operator getOperator() {
+		return mOperator;
+	}
+
+	Node getBefore() {
+		return mBefore;
+	}
+
+	Node getAfter() {
+		return mAfter;
+	}
+
+	GenericVar evaluate(ExecutionContext context) throws InterpreterException {
+		if (mSpine > KMaxRecursion) {
+			return evaluateSpine(this, context);
+		}
+		return evaluate(context, mBefore.evaluate(context));
+	}
+
+	/** Evaluates the node once its left operand has been. */
+	GenericVar evaluate(ExecutionContext context, GenericVar before) throws InterpreterException {
+		if (mLazy) {
+			return evaluateLazily(context, checked(mOperator, before));
+		}
+		GenericVar after = mAfter.evaluate(context);
+		if ((before.getType() == Type.tuple || after.getType() == Type.tuple) && !mOperator.supportsTuple()) {
+			throw new InterpreterException("Unexpected colon");
+		}
+		if ((before.getType() == Type.sequence || after.getType() == Type.sequence) && !mOperator.supportsSequence()) {
+			throw new InterpreterException("Unexpected sequence of values");
+		}
+		ExecutionListener listener = context.getListener();
+		long start = listener == null ? 0 : System.nanoTime();
+		GenericVar result = apply(context, before, after);
+		if (listener != null) {
+			listener.operatorReduced(mOperator, before, after, result, System.nanoTime() - start);
+		}
+		if (context.getBudget() != null) {
+			context.getBudget().reduced(result);
+		}
+		return result;
+	}
+
+	/* The clock stops while the operand the operator selected is evaluated. */
+	private GenericVar evaluateLazily(ExecutionContext context, GenericVar before) throws InterpreterException {
+		ExecutionListener listener = context.getListener();
+		long start = listener == null ? 0 : System.nanoTime();
+		long elapsed = 0;
+		Node operand = mOperator.select(before, mAfter);
+		GenericVar value = null;
+		if (operand != null) {
+			if (listener != null) {
+				elapsed = System.nanoTime() - start;
+			}
+			value = operand.evaluate(context);
+			if (listener != null) {
+				start = System.nanoTime();
+			}
+		}
+		GenericVar result = mOperator.complete(before, mAfter, value);
+		if (listener != null) {
+			listener.operatorReduced(mOperator, before, value, result, elapsed + System.nanoTime() - start);
+		}
+		if (context.getBudget() != null) {
+			context.getBudget().reduced(result);
+		}
+		return result;
+	}
+
+	private GenericVar apply(ExecutionContext context, GenericVar before, GenericVar after) throws InterpreterException {
+		return mTarget == null ? reduce(before, after) : mOperator.assign(context, mTarget, before, after);
+	}
+
+	/**
+	 * Computes the operator for operands already checked, through the
+	 * specialization for their types while they keep to them.
+	 */
+	GenericVar reduce(GenericVar before, GenericVar after) throws InterpreterException {
+		Feedback feedback = mFeedback;
+		if (feedback != null && feedback.before == before.getType() && feedback.after == after.getType()) {
+			return feedback.specialization.compute(before, after);
+		}
+		if (feedback == null) {
+			Specialization specialization = mOperator.specialize(before.getType(), after.getType());
+			mFeedback = specialization == null ? GENERIC : new Feedback(before.getType(), after.getType(), specialization);
+			if (specialization != null) {
+				return specialization.compute(before, after);
+			}
+		} else if (feedback != GENERIC) {
+			mFeedback = GENERIC;
+		}
+		return mOperator.compute(before, after);
+	}
+
+	/**
+	 * Whether the site runs specialized, for the types it was specialized to,
+	 * or generic; null before it first runs.
+	 */
+	String getFeedback() {
+		Feedback feedback = mFeedback;
+		if (feedback == null) {
+			return null;
+		}
+		return feedback == GENERIC ? "generic" : feedback.before + " " + feedback.after;
+	}
+
+	public String toString() {
+		return describe(this);
+	}
+}
+
+
+/**
+ * Pure expression whose repeated subexpressions are computed once per
+ * evaluation. The values live in the context while the expression runs.
+ */
+class CommonScope extends Node {
+	private final Node mExpression;
+	private final int mSlots;
+
+	CommonScope(Node expression, int slots) {
+		this.mExpression = expression;
+		this.mSlots = slots;
+	}
+
+	Node getExpression() {
+		return mExpression;
+	}
+
+	int getSlots() {
+		return mSlots;
+	}
+
+	GenericVar evaluate(ExecutionContext context) throws InterpreterException {
+		GenericVar[] outer = context.getCommon();
+		context.setCommon(new GenericVar[mSlots]);
+		try {
+			return mExpression.evaluate(context);
+		} finally {
+			context.setCommon(outer);
+		}
+	}
+
+	public String toString() {
+		return mExpression.toString();
+	}
+}
+
+
+class CommonNode extends Node {
+	private final Node mExpression;
+	private final int mSlot;
+
+	CommonNode(Node expression, int slot) {
+		this.mExpression = expression;
+		this.mSlot = slot;
+	}
+
+	Node getExpression() {
+		return mExpression;
+	}
+
+	int getSlot() {
+		return mSlot;
+	}
+
+	GenericVar evaluate(ExecutionContext context) throws InterpreterException {
+		GenericVar[] common = context.getCommon();
+		GenericVar value = common[mSlot];
+		if (value == null) {
+			value = mExpression.evaluate(context);
+			common[mSlot] = value;
+		}
+		return value;
+	}
+
+	public String toString() {
+		return mExpression.toString();
+	}
+}
+
+
+/**
+ * Names of the variables a script refers to, numbered in order of first use.
+ */
+class Symbols {
+	private final HashMap<String, Integer> mIndices = new HashMap<>();
+	private final ArrayList<String> mNames = new ArrayList<>();
+
+	int index(String name) {
+		Integer index = mIndices.get(name);
+		if (index == null) {
+			index = mNames.size();
+			mIndices.put(name, index);
+			mNames.add(name);
+		}
+		return index;
+	}
+
+	String[] toArray() {
+		return mNames.toArray(new String[mNames.size()]);
+	}
+}
+
+
+class CompiledScript {
+	private final Node[] mStatements;
+	private final String[] mSymbols;
+	/* Racing threads may lose a few runs, which only delays compiling. */
+	private int mRuns = 0;
+	private volatile JitCompiler.Compiled mCompiled = null;
+	private volatile boolean mUncompilable = false;
+	private volatile OpcodeProgram mProgram = null;
+	private volatile boolean mUnlowerable = false;
+	private volatile StatementGraph mGraph = null;
+	private volatile boolean mSequential = false;
+
+	CompiledScript(Node[] statements, String[] symbols) {
+		this.mStatements = statements;
+		this.mSymbols = symbols;
+	}
+
+	/**
+	 * Runs the statements within the context's limits. A stack overflow from
+	 * an expression nested too deeply for the thread is reported as a limit
+	 * too.
+	 *
+	 * Without a listener or limits, the opcodes engine runs the script lowered
+	 * to an OpcodeProgram, and the parallel engine runs the statements that do
+	 * not depend on each other concurrently. Otherwise, once the script has run
+	 * JitCompiler.getThreshold() times it is compiled, and later executions
+	 * without a listener or limits run the compiled code.
+	 */
+	GenericVar execute(ExecutionContext context) throws InterpreterException {
+		context.bind(mSymbols);
+		context.startBudget();
+		try {
+			if (context.getListener() == null && context.getBudget() == null) {
+				if (context.getEngine() == Engine.opcodes) {
+					OpcodeProgram program = program();
+					if (program != null) {
+						return program.run(context);
+					}
+				} else if (context.getEngine() == Engine.parallel) {
+					StatementGraph graph = graph();
+					if (graph != null) {
+						return graph.run(mStatements, context);
+					}
+				}
+				if (context.getEngine() != Engine.opcodes && !JitCompiler.isForceInterpret()) {
+					JitCompiler.Compiled compiled = compiled();
+					if (compiled != null) {
+						return compiled.run(context);
+					}
+				}
+			}
+			return Node.run(mStatements, context);
+		} catch (StackOverflowError err) {
+			throw new ExecutionLimitException("Maximum call stack size exceeded");
+		}
+	}
+
+	private JitCompiler.Compiled compiled() {
+		JitCompiler.Compiled compiled = mCompiled;
+		if (compiled == null && !mUncompilable && mRuns++ >= JitCompiler.getThreshold()) {
+			synchronized (this) {
+				if (mCompiled == null && !mUncompilable) {
+					mCompiled = JitCompiler.compile(mStatements);
+					mUncompilable = mCompiled == null;
+				}
+				compiled = mCompiled;
+			}
+		}
+		return compiled;
+	}
+
+	OpcodeProgram program() {
+		OpcodeProgram program = mProgram;
+		if (program == null && !mUnlowerable) {
+			synchronized (this) {
+				if (mProgram == null && !mUnlowerable) {
+					mProgram = OpcodeProgram.lower(mStatements);
+					mUnlowerable = mProgram == null;
+				}
+				program = mProgram;
+			}
+		}
+		return program;
+	}
+
+	private StatementGraph graph() {
+		StatementGraph graph = mGraph;
+		if (graph == null && !mSequential) {
+			synchronized (this) {
+				if (mGraph == null && !mSequential) {
+					mGraph = StatementGraph.build(mStatements);
+					mSequential = mGraph == null;
+				}
+				graph = mGraph;
+			}
+		}
+		return graph;
+	}
+
+	boolean isCompiled() {
+		return mCompiled != null;
+	}
+
+	boolean isParallel() {
+		return mGraph != null;
+	}
+
+	int size() {
+		return mStatements.length;
+	}
+
+	/* The names the script's variables are numbered by, not to be changed. */
+	String[] getSymbols() {
+		return mSymbols;
+	}
+
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (Node statement : mStatements) {
+			str.append(statement).append('\n');
+		}
+		return str.toString();
+	}
+}
@@ -0,0 +1,260 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary image of the variables of a context, so that a context can start
+ * where a bootstrap script left one instead of running the script again.
+ *
+ * The file is a header (magic, format version, payload length and CRC32 of
+ * the payload) followed by the payload: the number of variables, then each
+ * variable's name and value. A value is a tag byte and its content, text
+ * being UTF-8. An array, tuple or sequence met a second time is written as a
+ * reference to its first occurrence, so values shared between variables stay
+ * shared and cost no more room. Values are written and read recursively,
+ * so they may nest at most KMaxDepth deep; deeper ones fail to save, and a
+ * file claiming one fails to restore, with an IOException rather than
+ * running out of stack.
+ *
+ * Restoring maps the file, checks it, and decodes it in one pass. Nothing is
+ * assigned unless the whole file is valid.
+ */
+
+final class ContextSnapshot {
+	private static final int KMagic = 0x4A534E50; /* "JSNP" */
+	private static final int KVersion = 1;
+	private static final int KHeaderSize = 16;
+	private static final int KMaxDepth = 1000;
+
+	private static final int UNDEFINED = 0;
+	private static final int FALSE = 1;
+	private static final int TRUE = 2;
+	private static final int NUMBER = 3;      // double
+	private static final int STRING = 4;      // text
+	private static final int OBJECT = 5;      // text, count, count key and value pairs
+	private static final int TUPLE = 6;       // first and second value
+	private static final int SEQUENCE = 7;    // count, count values
+	private static final int REFERENCE = 8;   // index of an earlier object, tuple or sequence
+
+	private ContextSnapshot() {
+	}
+
+	/**
+	 * Writes every assigned variable of the context to the file, replacing
+	 * it.
+	 */
+	static void save(ExecutionContext context, Path file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(new byte[KHeaderSize]);
+		Map<String, GenericVar> variables = context.getVariables();
+		IdentityHashMap<GenericVar, Integer> shared = new IdentityHashMap<>();
+		out.writeInt(variables.size());
+		for (Map.Entry<String, GenericVar> variable : variables.entrySet()) {
+			writeString(out, variable.getKey());
+			writeValue(out, variable.getValue(), shared, 0);
+		}
+		out.flush();
+		byte[] image = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(image, KHeaderSize, image.length - KHeaderSize);
+		ByteBuffer.wrap(image).putInt(KMagic).putInt(KVersion).putInt(image.length - KHeaderSize).putInt((int) crc.getValue());
+		Files.write(file, image);
+	}
+
+	/**
+	 * Assigns the variables saved in the file in the context, as if the
+	 * script that built them had run against it.
+	 */
+	static void restore(Path file, ExecutionContext context) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < KHeaderSize || size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is not an interpreter snapshot");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		if (buffer.getInt() != KMagic) {
+			throw new IOException(file + " is not an interpreter snapshot");
+		}
+		int version = buffer.getInt();
+		if (version != KVersion) {
+			throw new IOException("Unsupported snapshot version " + version + " in " + file);
+		}
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		if (length != buffer.remaining() || (int) crc.getValue() != checksum) {
+			throw new IOException("Snapshot " + file + " is corrupt");
+		}
+		LinkedHashMap<String, GenericVar> variables = new LinkedHashMap<>();
+		try {
+			ArrayList<GenericVar> shared = new ArrayList<>();
+			for (int i = readCount(buffer); i > 0; i--) {
+				variables.put(readString(buffer), readValue(buffer, shared, 0));
+			}
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | InterpreterException err) {
+			throw new IOException("Snapshot " + file + " is corrupt", err);
+		}
+		for (Map.Entry<String, GenericVar> variable : variables.entrySet()) {
+			context.setVariable(variable.getKey(), variable.getValue());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		int length = readCount(buffer);
+		if (length > buffer.remaining()) {
+			throw new IOException("Text length " + length + " past the end of the snapshot");
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int readCount(ByteBuffer buffer) throws IOException {
+		int count = buffer.getInt();
+		if (count < 0) {
+			throw new IOException("Negative count " + count);
+		}
+		return count;
+	}
+
+	private static void writeValue(DataOutputStream out, GenericVar value, IdentityHashMap<GenericVar, Integer> shared, int depth) throws IOException {
+		if (depth > KMaxDepth) {
+			throw new IOException("Value nested more than " + KMaxDepth + " deep");
+		}
+		switch (value.getType()) {
+			case undefined: {
+				out.writeByte(UNDEFINED);
+				return;
+			}
+			case bool: {
+				out.writeByte(value.getBoolean() ? TRUE : FALSE);
+				return;
+			}
+			case number: {
+				out.writeByte(NUMBER);
+				out.writeDouble(value.getNumber());
+				return;
+			}
+			case string: {
+				out.writeByte(STRING);
+				writeString(out, value.get());
+				return;
+			}
+		}
+		Integer index = shared.get(value);
+		if (index != null) {
+			out.writeByte(REFERENCE);
+			out.writeInt(index);
+			return;
+		}
+		shared.put(value, shared.size());
+		switch (value.getType()) {
+			case object: {
+				Map<GenericVar, GenericVar> properties = value.getProperties();
+				out.writeByte(OBJECT);
+				writeString(out, value.get());
+				out.writeInt(properties.size());
+				for (Map.Entry<GenericVar, GenericVar> property : properties.entrySet()) {
+					writeValue(out, property.getKey(), shared, depth + 1);
+					writeValue(out, property.getValue(), shared, depth + 1);
+				}
+				return;
+			}
+			case tuple: {
+				out.writeByte(TUPLE);
+				writeValue(out, value.getFirst(), shared, depth + 1);
+				writeValue(out, value.getSecond(), shared, depth + 1);
+				return;
+			}
+			case sequence: {
+				out.writeByte(SEQUENCE);
+				out.writeInt(((Sequence) value).getItems().size());
+				for (GenericVar item : ((Sequence) value).getItems()) {
+					writeValue(out, item, shared, depth + 1);
+				}
+				return;
+			}
+			default: {
+				throw new Error("Unknown type " + value.getType());
+			}
+		}
+	}
+
+	/* Shared values are numbered in the order they start, as when written. */
+	private static GenericVar readValue(ByteBuffer buffer, ArrayList<GenericVar> shared, int depth) throws IOException, InterpreterException {
+		if (depth > KMaxDepth) {
+			throw new IOException("Value nested more than " + KMaxDepth + " deep");
+		}
+		int tag = buffer.get();
+		switch (tag) {
+			case UNDEFINED: return GenericVar.UNDEFINED;
+			case FALSE: return GenericVar.FALSE;
+			case TRUE: return GenericVar.TRUE;
+			case NUMBER: return GenericVar.of(buffer.getDouble());
+			case STRING: return new GenericVar(Type.string, readString(buffer));
+			case REFERENCE: {
+				/* Entries still being decoded are null: a value cannot contain itself. */
+				int index = buffer.getInt();
+				if (index < 0 || index >= shared.size() || shared.get(index) == null) {
+					throw new IOException("Invalid reference " + index);
+				}
+				return shared.get(index);
+			}
+		}
+		int index = shared.size();
+		shared.add(null);
+		GenericVar value;
+		switch (tag) {
+			case OBJECT: {
+				String text = readString(buffer);
+				int count = readCount(buffer);
+				value = count == 0 ? GenericVar.of(Type.object, text) : new GenericVar(Type.object, text);
+				for (int i = 0; i != count; i++) {
+					value.addProperty(readValue(buffer, shared, depth + 1), readValue(buffer, shared, depth + 1));
+				}
+				break;
+			}
+			case TUPLE: {
+				GenericVar first = readValue(buffer, shared, depth + 1);
+				value = new GenericVar(first, readValue(buffer, shared, depth + 1));
+				break;
+			}
+			case SEQUENCE: {
+				int count = readCount(buffer);
+				ArrayList<GenericVar> items = new ArrayList<>(Math.min(count, buffer.remaining()));
+				for (int i = 0; i != count; i++) {
+					items.add(readValue(buffer, shared, depth + 1));
+				}
+				value = Sequence.of(items);
+				break;
+			}
+			default: {
+				throw new IOException("Unknown value tag " + tag);
+			}
+		}
+		shared.set(index, value);
+		return value;
+	}
+}
@@ -1,4 +1,6 @@
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by Darren Chan on 1/16/2017.
@@ -6,6 +8,15 @@ import java.util.ArrayList;
  */
 
 class CustomOperators {
+	/* Built once and shared by every interpreter using the default operators. */
+	static final OperatorStore DEFAULT = defaults();
+
+	private static OperatorStore defaults() {
+		OperatorStore operators = new OperatorStore();
+		apply(operators);
+		return operators.freeze();
+	}
+
 	static boolean apply(OperatorStore operators) {
 		operators.add(new Operator("'", "'", 14) {
 			protected boolean breakOnNewline() {return true;}
@@ -28,183 +39,165 @@ class CustomOperators {
 		});
 		operators.add(new Operator("(", ")", 14) {
 			protected boolean supportsSequence() {return true;}
+			protected boolean parsesContent() {return true;}
+			protected boolean isPure() {return true;}
 
-			public GenericVar compute(String str) {
-				return new Interpreter().interpret(str);
+			public GenericVar compute(GenericVar content) {
+				return content;
 			}
 		});
 		operators.add(new Operator(".", 14, OperatorType.between) {
-			public GenericVar compute(GenericVar before, GenericVar after) throws InterpreterException {
-				return before.getProperty(new GenericVar(Type.string, after.getVariableName()));
+			protected boolean takesPropertyName() {return true;}
+
+			public GenericVar compute(GenericVar before, GenericVar key) throws InterpreterException {
+				return before.getProperty(key);
 			}
 		});
 		operators.add(new Operator("{", "}", 14) {
 			protected boolean supportsSequence() {return true;}
 			protected boolean supportsTuple() {return true;}
+			protected boolean parsesContent() {return true;}
+			protected boolean isPure() {return true;}
 
-			public GenericVar compute(String str) {
-				return new Interpreter().interpret(str);
+			public GenericVar compute(GenericVar content) {
+				return content;
 			}
 		});
 		operators.add(new Operator("[", "]", 14) {
 			protected boolean supportsSequence() {return true;}
+			protected boolean parsesContent() {return true;}
 
-			public GenericVar compute(String str) throws InterpreterException {
-				Sequence evaluatedValue = Sequence.toSequence(new Interpreter().interpret(str));
-				return Sequence.toArray(evaluatedValue);
+			public GenericVar compute(GenericVar content) throws InterpreterException {
+				return Sequence.toArray(Sequence.toSequence(content));
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("++", 13, OperatorType.after) {
-			public GenericVar set(GenericVar varName, GenericVar value) throws InterpreterException {
-				Interpreter.setVariable(varName.getVariableName(), value);
-				return varName;
+			public GenericVar set(ExecutionContext context, VariableNode target, GenericVar current, GenericVar value) {
+				target.store(context, value);
+				return current;
 			}
 
-			public String applyOperation(String fix) {
-				return String.valueOf(Double.parseDouble(fix) + 1);
+			public double applyOperation(double fix) {
+				return fix + 1;
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("--", 13, OperatorType.after) {
-			public GenericVar set(GenericVar varName, GenericVar value) throws InterpreterException {
-				Interpreter.setVariable(varName.getVariableName(), value);
-				return varName;
+			public GenericVar set(ExecutionContext context, VariableNode target, GenericVar current, GenericVar value) {
+				target.store(context, value);
+				return current;
 			}
 
-			public String applyOperation(String fix) {
-				return String.valueOf(Double.parseDouble(fix) - 1);
+			public double applyOperation(double fix) {
+				return fix - 1;
 			}
 		});
 		operators.add(new LogicalOperator("!", 12, OperatorType.before) {
 			public GenericVar compute(GenericVar value) throws InterpreterException {
-				return new GenericVar(Type.bool, toBoolean(value.getType(), value.get()) ? "false" : "true", value.getVariableName());
+				return GenericVar.of(!toBoolean(value));
 			}
 		});
 		operators.add(new UnaryOperator("-", 12) {
 			public GenericVar compute(GenericVar after) throws InterpreterException {
-				String val = getExplicitType(after);
-				if (!val.equals("NaN")) {
-					val = String.valueOf(-Double.parseDouble(val));
-				}
-				return new GenericVar(Type.number, trim(val));
+				return GenericVar.of(-getExplicitType(after));
 			}
 		});
 		operators.add(new UnaryOperator("+", 12) {
 			public GenericVar compute(GenericVar after) throws InterpreterException {
-				String val = getExplicitType(after);
-				if (!val.equals("NaN")) {
-					val = String.valueOf(Double.parseDouble(val));
-				}
-				return new GenericVar(Type.number, trim(val));
+				return GenericVar.of(getExplicitType(after));
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("++", 12, OperatorType.before) {
-			public String applyOperation(String fix) {
-				return String.valueOf(Double.parseDouble(fix) + 1);
+			public double applyOperation(double fix) {
+				return fix + 1;
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("--", 12, OperatorType.before) {
-			public String applyOperation(String fix) {
-				return String.valueOf(Double.parseDouble(fix) - 1);
+			public double applyOperation(double fix) {
+				return fix - 1;
 			}
 		});
 		operators.add(new ArithmeticOperator("**", 11) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Math.pow(Double.parseDouble(before), Double.parseDouble(after)));
+			public double applyOperation(double before, double after) {
+				return Math.pow(before, after);
 			}
 		});
 		operators.add(new ArithmeticOperator("*", 10) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) * Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before * after;
 			}
 		});
 		operators.add(new ArithmeticOperator("/", 10) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) / Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before / after;
 			}
 		});
 		operators.add(new ArithmeticOperator("%", 10) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) % Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before % after;
 			}
 		});
 		operators.add(new ArithmeticOperator("+", 9) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) + Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before + after;
 			}
 		});
 		operators.add(new ArithmeticOperator("-", 9) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) - Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before - after;
 			}
 		});
-		operators.add(new LogicalOperator("<", 8) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				String num1 = getExplicitType(value1);
-				String num2 = getExplicitType(value2);
-				if (num1.equals("NaN") || num2.equals("NaN")) {
-					return new GenericVar(Type.bool, "false");
-				}
-				return new GenericVar(Type.bool, Double.parseDouble(num1) < Double.parseDouble(num2) ? "true" : "false");
+		operators.add(new ComparisonOperator("<", 8) {
+			boolean compare(double before, double after) {
+				return before < after;
 			}
 		});
-		operators.add(new LogicalOperator("<=", 8) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				String num1 = getExplicitType(value1);
-				String num2 = getExplicitType(value2);
-				if (num1.equals("NaN") || num2.equals("NaN")) {
-					return new GenericVar(Type.bool, "false");
-				}
-				return new GenericVar(Type.bool, Double.parseDouble(num1) <= Double.parseDouble(num2) ? "true" : "false");
+		operators.add(new ComparisonOperator("<=", 8) {
+			boolean compare(double before, double after) {
+				return before <= after;
 			}
 		});
-		operators.add(new LogicalOperator(">", 8) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				String num1 = getExplicitType(value1);
-				String num2 = getExplicitType(value2);
-				if (num1.equals("NaN") || num2.equals("NaN")) {
-					return new GenericVar(Type.bool, "false");
-				}
-				return new GenericVar(Type.bool, Double.parseDouble(num1) > Double.parseDouble(num2) ? "true" : "false");
+		operators.add(new ComparisonOperator(">", 8) {
+			boolean compare(double before, double after) {
+				return before > after;
 			}
 		});
-		operators.add(new LogicalOperator(">=", 8) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				String num1 = getExplicitType(value1);
-				String num2 = getExplicitType(value2);
-				if (num1.equals("NaN") || num2.equals("NaN")) {
-					return new GenericVar(Type.bool, "false");
-				}
-				return new GenericVar(Type.bool, Double.parseDouble(num1) >= Double.parseDouble(num2) ? "true" : "false");
+		operators.add(new ComparisonOperator(">=", 8) {
+			boolean compare(double before, double after) {
+				return before >= after;
 			}
 		});
-		operators.add(new LogicalOperator("==", 7) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				return new GenericVar(Type.bool, equals(value1, value2) ? "true" : "false");
+		operators.add(new EqualityOperator("==", 7, false, false));
+		operators.add(new EqualityOperator("!=", 7, false, true));
+		operators.add(new EqualityOperator("===", 7, true, false));
+		operators.add(new EqualityOperator("!==", 7, true, true));
+		operators.add(new LogicalOperator("&&", 6) {
+			protected boolean evaluatesLazily() {return true;}
+
+			public Node select(GenericVar value1, Node value2) {
+				return toBoolean(value1) ? value2 : null;
 			}
-		});
-		operators.add(new LogicalOperator("!=", 7) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				return new GenericVar(Type.bool, equals(value1, value2) ? "false" : "true");
+
+			public GenericVar complete(GenericVar value1, Node value2, GenericVar value) throws InterpreterException {
+				return GenericVar.of(value != null && toBoolean(Node.checked(this, value)));
 			}
-		});
-		operators.add(new LogicalOperator("===", 7) {
+
 			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				return new GenericVar(Type.bool, equalsStrict(value1, value2) ? "true" : "false");
+				return GenericVar.of(toBoolean(value1) && toBoolean(value2));
 			}
 		});
-		operators.add(new LogicalOperator("!==", 7) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				return new GenericVar(Type.bool, equalsStrict(value1, value2) ? "false" : "true");
+		operators.add(new LogicalOperator("||", 5) {
+			protected boolean evaluatesLazily() {return true;}
+
+			public Node select(GenericVar value1, Node value2) {
+				return toBoolean(value1) ? null : value2;
 			}
-		});
-		operators.add(new LogicalOperator("&&", 6) {
-			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				return new GenericVar(Type.bool, toBoolean(value1.getType(), value1.get()) && toBoolean(value2.getType(), value2.get()) ? "true" : "false");
+
+			public GenericVar complete(GenericVar value1, Node value2, GenericVar value) throws InterpreterException {
+				return GenericVar.of(value == null || toBoolean(Node.checked(this, value)));
 			}
-		});
-		operators.add(new LogicalOperator("||", 5) {
+
 			public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
-				return new GenericVar(Type.bool, toBoolean(value1.getType(), value1.get()) || toBoolean(value2.getType(), value2.get()) ? "true" : "false");
+				return GenericVar.of(toBoolean(value1) || toBoolean(value2));
 			}
 		});
 		operators.add(new Operator(":", 4, OperatorType.between) {
@@ -214,47 +207,79 @@ class CustomOperators {
 		});
 		operators.add(new LogicalOperator("?", 3) {
 			protected boolean supportsTuple() {return true;}
+			/* An incomplete ternary is an Error, which must not surface at compile time. */
+			protected boolean isPure() {return false;}
+			protected boolean evaluatesLazily() {return true;}
+
+			/**
+			 * Only the arm that is taken is evaluated, the : pair itself is
+			 * never built.
+			 */
+			public Node select(GenericVar condition, Node results) {
+				BinaryNode arms = arms(results);
+				if (arms != null) {
+					return toBoolean(condition) ? arms.getBefore() : arms.getAfter();
+				}
+				return results;
+			}
+
+			public GenericVar complete(GenericVar condition, Node results, GenericVar value) throws InterpreterException {
+				BinaryNode arms = arms(results);
+				if (arms != null) {
+					return Node.checked(arms.getOperator(), value);
+				}
+				return compute(condition, Node.checked(this, value));
+			}
+
+			private BinaryNode arms(Node results) {
+				if (results instanceof BinaryNode && ((BinaryNode) results).getOperator().getSymbol().equals(":")) {
+					return (BinaryNode) results;
+				}
+				return null;
+			}
 
 			public GenericVar compute(GenericVar condition, GenericVar results) throws InterpreterException {
 				if (results.getType() != Type.tuple) {
 					throw new Error("Incomplete Ternary Operator");
 				}
-				return toBoolean(condition.getType(), condition.get()) ? results.getFirst() : results.getSecond();
+				return toBoolean(condition) ? results.getFirst() : results.getSecond();
 			}
 		});
 		operators.add(new Operator("=", 2, OperatorType.between) {
-			public GenericVar compute(GenericVar varName, GenericVar value) throws InterpreterException {
-				return Interpreter.setVariable(varName.getVariableName(), value);
+			protected boolean assigns() {return true;}
+
+			public GenericVar assign(ExecutionContext context, VariableNode target, GenericVar current, GenericVar value) {
+				return target.store(context, value);
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("**=", 2) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Math.pow(Double.parseDouble(before), Double.parseDouble(after)));
+			public double applyOperation(double before, double after) {
+				return Math.pow(before, after);
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("*=", 2) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) * Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before * after;
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("/=", 2) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) / Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before / after;
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("%=", 2) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) % Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before % after;
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("+=", 2) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) + Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before + after;
 			}
 		});
 		operators.add(new AssignmentArithmeticOperator("-=", 2) {
-			public String applyOperation(String before, String after) {
-				return String.valueOf(Double.parseDouble(before) - Double.parseDouble(after));
+			public double applyOperation(double before, double after) {
+				return before - after;
 			}
 		});
 		operators.add(new Operator(",", 1, OperatorType.between) {
@@ -274,49 +299,43 @@ class CustomOperators {
 abstract class ArithmeticOperator extends Operator {
 	String symbol;
 
-	String trim(String str) {
-		int start = 0;
-		while (start < str.length() - 1 && str.charAt(start) == '0' && str.charAt(start + 1) != '.') {
-			start++;
-		}
-		int end = str.length() - 1;
-		while (end >= 0 && str.charAt(end) == '0') {
-			end--;
-		}
-		str = str.substring(start, end + 1);
-		return str.charAt(str.length() - 1) == '.' ? str.substring(start, str.length() - 1) : str;
-	}
-
-	String verifyNumeric(String _value) {
+	static double verifyNumeric(String _value) {
 		boolean decimal = false;
 		for (int i = 0; i != _value.length(); i++) {
 			if (_value.charAt(i) < '0' || _value.charAt(i) > '9') {
 				if (_value.charAt(i) == '.') {
 					if (decimal) {
-						return "NaN";
+						return Double.NaN;
 					} else {
 						decimal = true;
 					}
 				} else if (_value.charAt(i) == '-' || _value.charAt(i) == '+') {
 					if (i != 0) {
-						return "NaN";
+						return Double.NaN;
 					}
 				} else {
-					return "NaN";
+					return Double.NaN;
 				}
 			}
 		}
-		return _value;
+		return parse(_value);
+	}
+
+	static double parse(String _value) {
+		try {
+			return Double.parseDouble(_value);
+		} catch (NumberFormatException err) {
+			return Double.NaN;
+		}
 	}
 
-	String getImplicitValue(GenericVar value) {
+	double getImplicitValue(GenericVar value) {
 		switch (value.getType()) {
-			case number: return value.get();
-			case bool: return value.get().equals("true") ? "1" : "0";
-			case object: return "0";
+			case number: return value.getNumber();
+			case bool: return value.getBoolean() ? 1 : 0;
+			case object: return 0;
 			case string: return verifyNumeric(value.get());
-			case undefined: return "NaN";
-			default: return value.get();
+			default: return Double.NaN;
 		}
 	}
 
@@ -330,18 +349,50 @@ abstract class ArithmeticOperator extends Operator {
 		this.symbol = symbol;
 	}
 
-	abstract public String applyOperation(String before, String after);
+	abstract public double applyOperation(double before, double after);
+
+	protected boolean isPure() {
+		return true;
+	}
+
+	/**
+	 * Two numbers skip the implicit conversion, and + with a string operand
+	 * goes straight to concatenating. Subclasses that override compute
+	 * override this as well.
+	 */
+	protected Specialization specialize(Type before, Type after) {
+		if (before == Type.number && after == Type.number) {
+			return new Specialization() {
+				public GenericVar compute(GenericVar param1, GenericVar param2) {
+					double value1 = param1.getNumber();
+					double value2 = param2.getNumber();
+					if (Double.isNaN(value1) || Double.isNaN(value2)) {
+						return GenericVar.NAN;
+					}
+					return GenericVar.of(applyOperation(value1, value2));
+				}
+			};
+		}
+		if (symbol.equals("+") && (before == Type.string || after == Type.string)) {
+			return new Specialization() {
+				public GenericVar compute(GenericVar param1, GenericVar param2) throws InterpreterException {
+					return Rope.concat(param1, param2);
+				}
+			};
+		}
+		return null;
+	}
 
 	public GenericVar compute(GenericVar param1, GenericVar param2) throws InterpreterException {
 		if (symbol.equals("+") && (param1.getType() == Type.string || param2.getType() == Type.string)) {
-			return new GenericVar(Type.string, param1.get() + param2.get());
+			return Rope.concat(param1, param2);
 		}
-		String computedValue1 = getImplicitValue(param1);
-		String computedValue2 = getImplicitValue(param2);
-		if (computedValue1.equals("NaN") || computedValue2.equals("NaN")) {
-			return new GenericVar(Type.number, "NaN");
+		double computedValue1 = getImplicitValue(param1);
+		double computedValue2 = getImplicitValue(param2);
+		if (Double.isNaN(computedValue1) || Double.isNaN(computedValue2)) {
+			return GenericVar.of(Double.NaN);
 		}
-		return new GenericVar(Type.number, trim(applyOperation(computedValue1, computedValue2)));
+		return GenericVar.of(applyOperation(computedValue1, computedValue2));
 	}
 }
 
@@ -354,36 +405,56 @@ class AssignmentArithmeticOperator extends ArithmeticOperator {
 		super(symbol, priority, type);
 	}
 
-	public String applyOperation(String before, String after) {
+	public double applyOperation(double before, double after) {
 		throw new Error("applyOperation not initialized!");
 	}
 
-	public String applyOperation(String fix) {
+	public double applyOperation(double fix) {
 		throw new Error("applyOperation not initialized!");
 	}
 
-	public GenericVar set(GenericVar varName, GenericVar value) throws InterpreterException {
-		return Interpreter.setVariable(varName.getVariableName(), value);
+	protected boolean isPure() {
+		return false;
+	}
+
+	protected boolean assigns() {
+		return true;
+	}
+
+	/**
+	 * Stores the new value and returns the result of the expression, the new
+	 * value unless overridden.
+	 */
+	public GenericVar set(ExecutionContext context, VariableNode target, GenericVar current, GenericVar value) {
+		return target.store(context, value);
+	}
+
+	public GenericVar compute(GenericVar current, GenericVar value) throws InterpreterException {
+		throw new Error("Assignment requires a variable");
+	}
+
+	public GenericVar compute(GenericVar current) throws InterpreterException {
+		throw new Error("Assignment requires a variable");
 	}
 
-	public GenericVar compute(GenericVar varName, GenericVar value) throws InterpreterException {
-		if (symbol.equals("+=") && (varName.getType() == Type.string || value.getType() == Type.string)) {
-			return set(varName, new GenericVar(Type.string, varName.get() + value.get(), varName.getVariableName()));
+	public GenericVar assign(ExecutionContext context, VariableNode target, GenericVar current, GenericVar value) throws InterpreterException {
+		if (symbol.equals("+=") && (current.getType() == Type.string || value.getType() == Type.string)) {
+			return set(context, target, current, Rope.concat(current, value));
 		}
-		String computedValue1 = getImplicitValue(varName);
-		String computedValue2 = getImplicitValue(value);
-		if (computedValue1.equals("NaN") || computedValue2.equals("NaN")) {
-			return set(varName, new GenericVar(Type.number, "NaN", varName.getVariableName()));
+		double computedValue1 = getImplicitValue(current);
+		double computedValue2 = getImplicitValue(value);
+		if (Double.isNaN(computedValue1) || Double.isNaN(computedValue2)) {
+			return set(context, target, current, GenericVar.of(Double.NaN));
 		}
-		return set(varName, new GenericVar(Type.number, trim(applyOperation(computedValue1, computedValue2)), varName.getVariableName()));
+		return set(context, target, current, GenericVar.of(applyOperation(computedValue1, computedValue2)));
 	}
 
-	public GenericVar compute(GenericVar side) throws InterpreterException {
-		String computedValue = getImplicitValue(side);
-		if (computedValue.equals("NaN")) {
-			return set(side, new GenericVar(Type.number, "NaN", side.getVariableName()));
+	public GenericVar assign(ExecutionContext context, VariableNode target, GenericVar current) throws InterpreterException {
+		double computedValue = getImplicitValue(current);
+		if (Double.isNaN(computedValue)) {
+			return set(context, target, current, GenericVar.of(Double.NaN));
 		}
-		return set(side, new GenericVar(Type.number, trim(applyOperation(computedValue)), side.getVariableName()));
+		return set(context, target, current, GenericVar.of(applyOperation(computedValue)));
 	}
 }
 
@@ -392,49 +463,23 @@ abstract class UnaryOperator extends Operator {
 		super(symbol, priority, OperatorType.before);
 	}
 
-	static String getExplicitType(GenericVar value) {
-		switch (value.getType()) {
-			case string: {
-				String _value = value.get();
-				boolean decimal = false;
-				for (int i = 0; i != _value.length(); i++) {
-					if (_value.charAt(i) < '0' && _value.charAt(i) > '9') {
-						if (_value.charAt(i) == '.') {
-							if (decimal) {
-								return "NaN";
-							} else {
-								decimal = true;
-							}
-						} else if (_value.charAt(i) == '-' || _value.charAt(i) == '+') {
-							if (i != 0) {
-								return "NaN";
-							}
-						} else {
-							return "NaN";
-						}
-					}
-				}
-				return _value;
-			}
-			case number: return value.get();
-			case bool: return value.get().equals("true") ? "1" : "0";
-			case object: return "0";
-			case undefined: return "NaN";
-			default: return value.get();
-		}
+	protected boolean isPure() {
+		return true;
 	}
 
-	String trim(String str) {
-		int start = 0;
-		while (start < str.length() - 1 && str.charAt(start) == '0' && str.charAt(start + 1) != '.') {
-			start++;
-		}
-		int end = str.length() - 1;
-		while (end >= 0 && str.charAt(end) == '0') {
-			end--;
+	/**
+	 * Unlike the implicit conversion, strings are accepted in any form
+	 * Double.parseDouble understands.
+	 */
+	static double getExplicitType(GenericVar value) {
+		switch (value.getType()) {
+			case string: return ArithmeticOperator.parse(value.get());
+			case number: return value.getNumber();
+			case bool: return value.getBoolean() ? 1 : 0;
+			case object: return 0;
+			case undefined: return Double.NaN;
+			default: return ArithmeticOperator.parse(value.get());
 		}
-		str = str.substring(start, end + 1);
-		return str.charAt(str.length() - 1) == '.' ? str.substring(start, str.length() - 1) : str;
 	}
 
 	abstract public GenericVar compute(GenericVar after) throws InterpreterException;
@@ -449,11 +494,11 @@ class LogicalOperator extends ArithmeticOperator {
 		super(symbol, priority, op);
 	}
 
-	String getExplicitType(GenericVar value) {
+	double getExplicitType(GenericVar value) {
 		return UnaryOperator.getExplicitType(value);
 	}
 
-	public String applyOperation(String before, String after) {
+	public double applyOperation(double before, double after) {
 		throw new Error("Not used");
 	}
 
@@ -462,16 +507,18 @@ class LogicalOperator extends ArithmeticOperator {
 			return false;
 		}
 		switch (value1.getType()) {
-			case number: return Double.parseDouble(value1.get()) == Double.parseDouble(value2.get());
+			case number: return value1.getNumber() == value2.getNumber();
+			case bool: return value1.getBoolean() == value2.getBoolean();
 			default: return value1.get().equals(value2.get());
 		}
 	}
 
 	boolean equals(GenericVar value1, GenericVar value2) {
-		if ((value1.getType() == Type.number && value2.getType() == Type.string) || (value1.getType() == Type.string && value2.getType() == Type.number)) {
-			String str1 = verifyNumeric(value1.get());
-			String str2 = verifyNumeric(value2.get());
-			return !(str1.equals("NaN") || str2.equals("NaN")) && Double.parseDouble(str1) == Double.parseDouble(str2);
+		if (value1.getType() == Type.number && value2.getType() == Type.string) {
+			return value1.getNumber() == verifyNumeric(value2.get());
+		}
+		if (value1.getType() == Type.string && value2.getType() == Type.number) {
+			return verifyNumeric(value1.get()) == value2.getNumber();
 		}
 		boolean undef1 = value1.getType() == Type.object && value1.get().equals("null") || value1.getType() == Type.undefined;
 		boolean undef2 = value2.getType() == Type.object && value2.get().equals("null") || value2.getType() == Type.undefined;
@@ -480,7 +527,7 @@ class LogicalOperator extends ArithmeticOperator {
 		} else if (undef1) {
 			return true;
 		}
-		if ((value1.getType() == Type.number && verifyNumeric(value1.get()).equals("NaN")) || (value2.getType() == Type.number && verifyNumeric(value2.get()).equals("NaN"))) {
+		if ((value1.getType() == Type.number && Double.isNaN(value1.getNumber())) || (value2.getType() == Type.number && Double.isNaN(value2.getNumber()))) {
 			return false;
 		}
 		if (value1.getType() == value2.getType()) {
@@ -490,7 +537,7 @@ class LogicalOperator extends ArithmeticOperator {
 			case string: {
 				switch (value2.getType()) {
 					case bool: {
-						return (value1.get().length() == 0) == (value2.get().equals("false"));
+						return (value1.get().length() == 0) == !value2.getBoolean();
 					}
 					case object: {
 						return false;
@@ -501,8 +548,8 @@ class LogicalOperator extends ArithmeticOperator {
 			case number: {
 				switch (value2.getType()) {
 					case bool: {
-						double value = Double.parseDouble(value1.get());
-						return value == 0 ? (value2.get().equals("false")) : (value == 1 && value2.get().equals("true"));
+						double value = value1.getNumber();
+						return value == 0 ? !value2.getBoolean() : (value == 1 && value2.getBoolean());
 					}
 					case object: {
 						return false;
@@ -513,11 +560,11 @@ class LogicalOperator extends ArithmeticOperator {
 			case bool: {
 				switch (value2.getType()) {
 					case string: {
-						return (value2.get().length() == 0) == (value1.get().equals("false"));
+						return (value2.get().length() == 0) == !value1.getBoolean();
 					}
 					case number: {
-						double value = Double.parseDouble(value2.get());
-						return value == 0 ? (value1.get().equals("false")) : (value == 1 && value1.get().equals("true"));
+						double value = value2.getNumber();
+						return value == 0 ? !value1.getBoolean() : (value == 1 && value1.getBoolean());
 					}
 					case object: {
 						return false;
@@ -543,11 +590,11 @@ class LogicalOperator extends ArithmeticOperator {
 		return false;
 	}
 
-	boolean toBoolean(Type type, String value) {
-		switch(type) {
-			case string: return value.length() != 0;
-			case number: return Double.parseDouble(value) != 0;
-			case bool: return value.equals("true");
+	static boolean toBoolean(GenericVar value) {
+		switch (value.getType()) {
+			case string: return Rope.length(value) != 0;
+			case number: return value.getNumber() != 0;
+			case bool: return value.getBoolean();
 			case object: return false;
 			case undefined: return false;
 		}
@@ -561,6 +608,95 @@ class LogicalOperator extends ArithmeticOperator {
 	public GenericVar compute(GenericVar value) throws InterpreterException {
 		throw new Error("LogicalOperator Not Initialized!");
 	}
+
+	protected Specialization specialize(Type before, Type after) {
+		return null;
+	}
+}
+
+/**
+ * <, <=, > and >=, comparing the explicit numeric values of the operands.
+ */
+abstract class ComparisonOperator extends LogicalOperator {
+	ComparisonOperator(String symbol, int priority) {
+		super(symbol, priority);
+	}
+
+	abstract boolean compare(double before, double after);
+
+	public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
+		return GenericVar.of(compare(getExplicitType(value1), getExplicitType(value2)));
+	}
+
+	protected Specialization specialize(Type before, Type after) {
+		if (before != Type.number || after != Type.number) {
+			return null;
+		}
+		return new Specialization() {
+			public GenericVar compute(GenericVar value1, GenericVar value2) {
+				return GenericVar.of(compare(value1.getNumber(), value2.getNumber()));
+			}
+		};
+	}
+}
+
+/**
+ * ==, !=, === and !==. Operands of the same type compare alike loosely and
+ * strictly, and strict ones of different types are never equal, so those
+ * skip the coercion table.
+ */
+class EqualityOperator extends LogicalOperator {
+	private final boolean strict;
+	private final boolean negated;
+
+	EqualityOperator(String symbol, int priority, boolean strict, boolean negated) {
+		super(symbol, priority);
+		this.strict = strict;
+		this.negated = negated;
+	}
+
+	public GenericVar compute(GenericVar value1, GenericVar value2) throws InterpreterException {
+		return GenericVar.of(negated != (strict ? equalsStrict(value1, value2) : equals(value1, value2)));
+	}
+
+	protected Specialization specialize(Type before, Type after) {
+		if (before != after) {
+			if (!strict) {
+				return null;
+			}
+			return new Specialization() {
+				public GenericVar compute(GenericVar value1, GenericVar value2) {
+					return GenericVar.of(negated);
+				}
+			};
+		}
+		switch (before) {
+			case number: {
+				return new Specialization() {
+					public GenericVar compute(GenericVar value1, GenericVar value2) {
+						return GenericVar.of(negated != (value1.getNumber() == value2.getNumber()));
+					}
+				};
+			}
+			case string: {
+				return new Specialization() {
+					public GenericVar compute(GenericVar value1, GenericVar value2) {
+						return GenericVar.of(negated != value1.get().equals(value2.get()));
+					}
+				};
+			}
+			case bool: {
+				return new Specialization() {
+					public GenericVar compute(GenericVar value1, GenericVar value2) {
+						return GenericVar.of(negated != (value1.getBoolean() == value2.getBoolean()));
+					}
+				};
+			}
+			default: {
+				return null;
+			}
+		}
+	}
 }
 
 class Sequence extends GenericVar {
@@ -571,11 +707,23 @@ class Sequence extends GenericVar {
 		mSequence.add(var);
 	}
 
+	private Sequence(List<GenericVar> vars) {
+		super(Type.sequence, "");
+		mSequence.addAll(vars);
+	}
+
 	void add(GenericVar var) {
-		System.out.println("Adding: " + var);
 		mSequence.add(var);
 	}
 
+	List<GenericVar> getItems() {
+		return Collections.unmodifiableList(mSequence);
+	}
+
+	static Sequence of(List<GenericVar> vars) {
+		return new Sequence(vars);
+	}
+
 	static Sequence toSequence(GenericVar var) {
 		if (var.getType() == Type.sequence) {
 			return (Sequence) var;
@@ -587,7 +735,7 @@ class Sequence extends GenericVar {
 	static GenericVar toArray(Sequence seq) throws InterpreterException {
 		GenericVar array = new GenericVar(Type.object, seq.get());
 		for (int i = 0; i != seq.mSequence.size(); i++) {
-			array.addProperty(new GenericVar(Type.number, String.valueOf(i)), seq.mSequence.get(i));
+			array.addProperty(GenericVar.of(i), seq.mSequence.get(i));
 		}
 		return array;
 	}
@@ -0,0 +1,205 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Variable scope a script executes against. A context is not synchronized,
+ * it belongs to one execution at a time; independent scripts use independent
+ * contexts and can run on different threads.
+ *
+ * Variables are kept in a frame of slots. A compiled script numbers its
+ * identifiers itself; binding it maps those numbers to the context's slots
+ * once, so reads and writes during execution are array accesses.
+ */
+
+class ExecutionContext {
+	/* Engine of new contexts, from the interpreter.engine system property. */
+	static final Engine DEFAULT_ENGINE = Engine.valueOf(System.getProperty("interpreter.engine", Engine.tree.name()));
+
+	private final HashMap<String, Integer> slots;
+	private String[] names = new String[16];
+	private GenericVar[] values = new GenericVar[16];
+	private int size = 0;
+	private String[] boundSymbols = null;
+	private int[] binding = null;
+	private ExecutionListener listener = null;
+	private GenericVar[] common = null;
+	private ExecutionLimits limits = null;
+	private ExecutionLimits.ExecutionBudget budget = null;
+	private ExecutionLimits.SharedBudget sharedBudget = null;
+	private Engine engine = DEFAULT_ENGINE;
+
+	ExecutionContext() {
+		this.slots = new HashMap<>();
+		setVariable("exit", new GenericVar(Type.string, "exit"));
+	}
+
+	/* Shares the frame and binding of the context; see view(). */
+	private ExecutionContext(ExecutionContext frame) {
+		this.slots = frame.slots;
+		this.names = frame.names;
+		this.values = frame.values;
+		this.size = frame.size;
+		this.boundSymbols = frame.boundSymbols;
+		this.binding = frame.binding;
+		this.engine = frame.engine;
+	}
+
+	private int slot(String varName) {
+		Integer slot = slots.get(varName);
+		if (slot != null) {
+			return slot;
+		}
+		if (size == values.length) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		names[size] = varName;
+		slots.put(varName, size);
+		return size++;
+	}
+
+	/**
+	 * Makes the script's symbols the ones read and written by index. The
+	 * mapping of the last script bound is kept, so executing the same script
+	 * again does no lookups at all.
+	 */
+	void bind(String[] symbols) {
+		if (symbols == boundSymbols) {
+			return;
+		}
+		int[] binding = new int[symbols.length];
+		for (int i = 0; i != symbols.length; i++) {
+			binding[i] = slot(symbols[i]);
+		}
+		this.binding = binding;
+		this.boundSymbols = symbols;
+	}
+
+	GenericVar get(int symbol) {
+		GenericVar value = values[binding[symbol]];
+		return value == null ? GenericVar.UNDEFINED : value;
+	}
+
+	GenericVar set(int symbol, GenericVar value) {
+		values[binding[symbol]] = value;
+		return value;
+	}
+
+	/**
+	 * Context reading and writing the variables of this one through the
+	 * script bound to it, with a state of its own otherwise, so that
+	 * statements touching different variables can run on different threads.
+	 * Binding or adding variables to either leaves the other behind.
+	 */
+	ExecutionContext view() {
+		return new ExecutionContext(this);
+	}
+
+	/** Values of the bound symbols, null for those never assigned. */
+	GenericVar[] save() {
+		GenericVar[] saved = new GenericVar[binding.length];
+		for (int i = 0; i != binding.length; i++) {
+			saved[i] = values[binding[i]];
+		}
+		return saved;
+	}
+
+	void restore(GenericVar[] saved) {
+		for (int i = 0; i != binding.length; i++) {
+			values[binding[i]] = saved[i];
+		}
+	}
+
+	GenericVar getVariable(String varName) {
+		Integer slot = slots.get(varName);
+		GenericVar value = slot == null ? null : values[slot];
+		return value == null ? GenericVar.UNDEFINED : value;
+	}
+
+	GenericVar setVariable(String varName, GenericVar value) {
+		/* Looked up first: slot() may replace the array. */
+		int slot = slot(varName);
+		values[slot] = value;
+		return value;
+	}
+
+	ExecutionListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Executions with a listener run on the tree, whatever the engine.
+	 */
+	void setListener(ExecutionListener listener) {
+		this.listener = listener;
+	}
+
+	ExecutionLimits getLimits() {
+		return limits;
+	}
+
+	/**
+	 * Limits every later execution against this context; null for none.
+	 */
+	void setLimits(ExecutionLimits limits) {
+		this.limits = limits;
+	}
+
+	void startBudget() {
+		if (sharedBudget != null) {
+			budget = sharedBudget.join();
+		} else {
+			budget = limits == null ? null : limits.start();
+		}
+	}
+
+	/**
+	 * Charges every later execution against this context to the shared
+	 * budget instead of starting a budget of its own; null to stop.
+	 */
+	void shareBudget(ExecutionLimits.SharedBudget sharedBudget) {
+		this.sharedBudget = sharedBudget;
+	}
+
+	ExecutionLimits.ExecutionBudget getBudget() {
+		return budget;
+	}
+
+	Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * The opcodes and parallel engines and compiled code neither report to
+	 * listeners nor charge budgets, so executions with a listener, metrics
+	 * included, or with limits run on the tree regardless.
+	 */
+	void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	GenericVar[] getCommon() {
+		return common;
+	}
+
+	void setCommon(GenericVar[] common) {
+		this.common = common;
+	}
+
+	/**
+	 * Snapshot of the variables that have been assigned, in the order they
+	 * were first seen.
+	 */
+	Map<String, GenericVar> getVariables() {
+		LinkedHashMap<String, GenericVar> variables = new LinkedHashMap<>();
+		for (int i = 0; i != size; i++) {
+			if (values[i] != null) {
+				variables.put(names[i], values[i]);
+			}
+		}
+		return Collections.unmodifiableMap(variables);
+	}
+}
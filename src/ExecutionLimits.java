@@ -0,0 +1,172 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resource budget for one execution of a script: how many operators may be
+ * reduced, how long it may run, how many values it may produce, how much text
+ * and how many array elements it may allocate and how deeply wrappers may
+ * nest. Limits are immutable; each with method returns a copy.
+ */
+
+class ExecutionLimits {
+	static final ExecutionLimits NONE = new ExecutionLimits(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+	private final long maxOperations;
+	private final long timeoutNanos;
+	private final long maxValues;
+	private final long maxAllocation;
+	private final int maxDepth;
+
+	private ExecutionLimits(long maxOperations, long timeoutNanos, long maxValues, long maxAllocation, int maxDepth) {
+		this.maxOperations = maxOperations;
+		this.timeoutNanos = timeoutNanos;
+		this.maxValues = maxValues;
+		this.maxAllocation = maxAllocation;
+		this.maxDepth = maxDepth;
+	}
+
+	ExecutionLimits withOperations(long maxOperations) {
+		return new ExecutionLimits(maxOperations, timeoutNanos, maxValues, maxAllocation, maxDepth);
+	}
+
+	ExecutionLimits withTimeout(long timeout, TimeUnit unit) {
+		return new ExecutionLimits(maxOperations, unit.toNanos(timeout), maxValues, maxAllocation, maxDepth);
+	}
+
+	/**
+	 * Every value an operator or wrapper produces counts as one, and arrays
+	 * count one more per element.
+	 */
+	ExecutionLimits withValues(long maxValues) {
+		return new ExecutionLimits(maxOperations, timeoutNanos, maxValues, maxAllocation, maxDepth);
+	}
+
+	/**
+	 * Every string an operator or wrapper produces charges its length in
+	 * characters, a concatenation being charged its full length even though
+	 * it is not copied, and every array charges one per element.
+	 */
+	ExecutionLimits withAllocation(long maxAllocation) {
+		return new ExecutionLimits(maxOperations, timeoutNanos, maxValues, maxAllocation, maxDepth);
+	}
+
+	ExecutionLimits withDepth(int maxDepth) {
+		return new ExecutionLimits(maxOperations, timeoutNanos, maxValues, maxAllocation, maxDepth);
+	}
+
+	ExecutionBudget start() {
+		return new ExecutionBudget(this, null);
+	}
+
+	SharedBudget share() {
+		return new SharedBudget(this);
+	}
+
+	public String toString() {
+		return "ExecutionLimits[operations=" + maxOperations + ", timeoutNanos=" + timeoutNanos + ", values=" + maxValues + ", allocation=" + maxAllocation + ", depth=" + maxDepth + "]";
+	}
+
+	/**
+	 * What is left of the limits during one execution. The clock is only read
+	 * every KClockInterval operations and at wrapper entry.
+	 */
+	static class ExecutionBudget {
+		private static final int KClockInterval = 1024;
+
+		private final ExecutionLimits limits;
+		private final long deadline;
+		private final SharedBudget shared;
+		private long operations = 0;
+		private long values = 0;
+		private long allocated = 0;
+		private int depth = 0;
+
+		private ExecutionBudget(ExecutionLimits limits, SharedBudget shared) {
+			this.limits = limits;
+			this.shared = shared;
+			if (shared != null) {
+				this.deadline = shared.deadline;
+			} else {
+				this.deadline = limits.timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + limits.timeoutNanos;
+			}
+		}
+
+		void reduced(GenericVar result) throws ExecutionLimitException {
+			Type type = result.getType();
+			long valueCount = type == Type.object ? 1 + result.getPropertyCount() : 1;
+			long allocation = type == Type.string ? Rope.length(result) : type == Type.object ? result.getPropertyCount() : 0;
+			long operations;
+			long values;
+			long allocated;
+			if (shared == null) {
+				operations = ++this.operations;
+				values = this.values += valueCount;
+				allocated = this.allocated += allocation;
+			} else {
+				operations = shared.operations.incrementAndGet();
+				values = shared.values.addAndGet(valueCount);
+				allocated = allocation == 0 ? shared.allocated.get() : shared.allocated.addAndGet(allocation);
+			}
+			if (operations > limits.maxOperations) {
+				throw new ExecutionLimitException("Operation limit of " + limits.maxOperations + " exceeded");
+			}
+			if (values > limits.maxValues) {
+				throw new ExecutionLimitException("Value limit of " + limits.maxValues + " exceeded");
+			}
+			if (allocated > limits.maxAllocation) {
+				throw new ExecutionLimitException("Allocation limit of " + limits.maxAllocation + " exceeded");
+			}
+			if ((operations & (KClockInterval - 1)) == 0) {
+				checkDeadline();
+			}
+		}
+
+		void enter() throws ExecutionLimitException {
+			if (++depth > limits.maxDepth) {
+				throw new ExecutionLimitException("Nesting limit of " + limits.maxDepth + " exceeded");
+			}
+			checkDeadline();
+		}
+
+		void leave() {
+			depth--;
+		}
+
+		private void checkDeadline() throws ExecutionLimitException {
+			if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+				throw new ExecutionLimitException("Deadline exceeded");
+			}
+		}
+	}
+
+	/**
+	 * One budget for an operation made of many executions, which may run on
+	 * several threads at once. Each execution joins it with a budget of its
+	 * own that tracks its nesting, and charges its operations, values and
+	 * allocation here. The deadline runs from share().
+	 */
+	static final class SharedBudget {
+		private final ExecutionLimits limits;
+		private final long deadline;
+		private final AtomicLong operations = new AtomicLong();
+		private final AtomicLong values = new AtomicLong();
+		private final AtomicLong allocated = new AtomicLong();
+
+		private SharedBudget(ExecutionLimits limits) {
+			this.limits = limits;
+			this.deadline = limits.timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + limits.timeoutNanos;
+		}
+
+		ExecutionBudget join() {
+			return new ExecutionBudget(limits, this);
+		}
+	}
+}
+
+
+class ExecutionLimitException extends InterpreterException {
+	private static final long serialVersionUID = 0;
+	ExecutionLimitException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,73 @@
+import java.io.PrintStream;
+
+/**
+ * Receives execution events from the nodes of a running script. Attach one
+ * with ExecutionContext.setListener; without a listener the nodes skip the
+ * calls entirely. Events hand over the live objects, nothing is formatted
+ * unless the listener does it.
+ *
+ * Only the tree interpreter reports events. Executions with a listener run
+ * on it whatever engine the context selects, and never use compiled code.
+ */
+
+interface ExecutionListener {
+	default void statementStarted(Node statement) {
+	}
+
+	default void statementFinished(Node statement, GenericVar result) {
+	}
+
+	/**
+	 * param2 is null for before and after operators, and for lazy operators
+	 * whose right operand was skipped; for ?: it is the arm taken. nanos is
+	 * the time spent in the operator's own work, operands excluded, lazy
+	 * operators included.
+	 */
+	default void operatorReduced(Operator operator, GenericVar param1, GenericVar param2, GenericVar result, long nanos) {
+	}
+
+	/**
+	 * nanos covers evaluating the content as well as the wrapper itself.
+	 */
+	default void wrapperEvaluated(Operator wrapper, GenericVar content, GenericVar result, long nanos) {
+	}
+
+	default void valueCreated(GenericVar value) {
+	}
+}
+
+
+/**
+ * Prints every event, for debugging scripts by hand.
+ */
+class TracingListener implements ExecutionListener {
+	private final PrintStream out;
+
+	TracingListener(PrintStream out) {
+		this.out = out;
+	}
+
+	public void statementStarted(Node statement) {
+		out.println("Statement: " + statement);
+	}
+
+	public void statementFinished(Node statement, GenericVar result) {
+		out.println("Result: " + result + " (" + result.getType() + ")");
+	}
+
+	public void operatorReduced(Operator operator, GenericVar param1, GenericVar param2, GenericVar result, long nanos) {
+		if (param2 == null) {
+			out.println("  " + operator.getSymbol() + " " + param1 + " -> " + result);
+		} else {
+			out.println("  " + param1 + " " + operator.getSymbol() + " " + param2 + " -> " + result);
+		}
+	}
+
+	public void wrapperEvaluated(Operator wrapper, GenericVar content, GenericVar result, long nanos) {
+		out.println("  " + wrapper.getSymbol() + wrapper.getSecondSymbol() + " " + content + " -> " + result);
+	}
+
+	public void valueCreated(GenericVar value) {
+		out.println("  Value: " + value);
+	}
+}
@@ -1,7 +1,15 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.AbstractMap.SimpleEntry;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 enum Type {
@@ -21,6 +29,17 @@ enum OperatorType {
 	wrapper
 }
 
+/**
+ * How a compiled script is executed: by walking its node tree, which hot
+ * scripts leave for JitCompiler, as an OpcodeProgram, or by walking the trees
+ * of independent statements concurrently following a StatementGraph.
+ */
+enum Engine {
+	tree,
+	opcodes,
+	parallel
+}
+
 
 class InterpreterException extends Exception {
 	private static final long serialVersionUID = 0;
@@ -30,38 +49,153 @@ class InterpreterException extends Exception {
 }
 
 
+/**
+ * Values are immutable once built, so the common ones are shared: use the
+ * of() factories rather than the constructors for booleans, numbers and
+ * literals. Variables live in the ExecutionContext, not in the value.
+ */
 class GenericVar {
-	private Type mType;
-	private String mValue;
-	private String mVariableName = null;
-	private GenericVar[] mTupleVars;
-	private HashMap<GenericVar, GenericVar> mProperties = new HashMap<>();
+	static final GenericVar UNDEFINED = new GenericVar(Type.undefined, "undefined");
+	static final GenericVar NULL = new GenericVar(Type.object, "null");
+	static final GenericVar TRUE = new GenericVar(true);
+	static final GenericVar FALSE = new GenericVar(false);
+	static final GenericVar NAN = new GenericVar(Double.NaN);
 
-	GenericVar(Type type, String value, String variableName) {
-		this.mType = type;
-		this.mValue = value;
-		this.mVariableName = variableName;
+	private static final int KSmallMin = -128;
+	private static final int KSmallMax = 1024;
+	/* 2^53: every integer up to it is exactly representable. */
+	private static final double KMaxExactInteger = 9007199254740992d;
+	private static final GenericVar[] SMALL_INTEGERS = new GenericVar[KSmallMax - KSmallMin + 1];
+
+	static {
+		for (int i = KSmallMin; i <= KSmallMax; i++) {
+			SMALL_INTEGERS[i - KSmallMin] = new GenericVar((double) i);
+		}
 	}
 
+	private final Type mType;
+	/* Formatted lazily for numbers; racing threads store the same text. */
+	private String mValue;
+	private final double mNumber;
+	private final boolean mBoolean;
+	private final GenericVar[] mTupleVars;
+	private HashMap<GenericVar, GenericVar> mProperties = null;
+
 	GenericVar(Type type, String value) {
 		this.mType = type;
-		this.mValue = value;
+		this.mNumber = type == Type.number ? Double.parseDouble(value) : 0;
+		this.mBoolean = type == Type.bool && value.equals("true");
+		this.mValue = type == Type.number || type == Type.bool ? null : value;
+		this.mTupleVars = null;
+	}
+
+	GenericVar(double number) {
+		this.mType = Type.number;
+		this.mNumber = number;
+		this.mBoolean = false;
+		this.mTupleVars = null;
+	}
+
+	GenericVar(boolean bool) {
+		this.mType = Type.bool;
+		this.mNumber = 0;
+		this.mBoolean = bool;
+		this.mTupleVars = null;
 	}
 
 	GenericVar(GenericVar var1, GenericVar var2) {
 		this.mType = Type.tuple;
+		this.mNumber = 0;
+		this.mBoolean = false;
 		this.mTupleVars = new GenericVar[] {var1, var2};
 	}
 
+	static GenericVar of(boolean bool) {
+		return bool ? TRUE : FALSE;
+	}
+
+	static GenericVar of(double number) {
+		if (Double.isNaN(number)) {
+			return NAN;
+		}
+		if (number >= KSmallMin && number <= KSmallMax && number == (int) number && (number != 0 || 1 / number > 0)) {
+			return SMALL_INTEGERS[(int) number - KSmallMin];
+		}
+		return new GenericVar(number);
+	}
+
+	static GenericVar of(Type type, String value) {
+		switch (type) {
+			case undefined: return UNDEFINED;
+			case bool: return of(value.equals("true"));
+			case number: return of(Double.parseDouble(value));
+			case object: return value.equals("null") ? NULL : new GenericVar(type, value);
+			default: return new GenericVar(type, value);
+		}
+	}
+
 	Type getType() {
 		return mType;
 	}
 
+	/**
+	 * Text form of the value. Numbers and booleans are only formatted here,
+	 * the number's text being kept once it has been asked for.
+	 */
 	String get() {
-		if (mType == Type.tuple) {
-			throw new Error("Unable to directly access tuple.");
+		switch (mType) {
+			case tuple: {
+				throw new Error("Unable to directly access tuple.");
+			}
+			case number: {
+				if (mValue == null) {
+					mValue = format(mNumber);
+				}
+				return mValue;
+			}
+			case bool: {
+				return mBoolean ? "true" : "false";
+			}
+			default: {
+				return mValue;
+			}
+		}
+	}
+
+	double getNumber() {
+		if (mType != Type.number) {
+			throw new Error("Not a number.");
+		}
+		return mNumber;
+	}
+
+	boolean getBoolean() {
+		if (mType != Type.bool) {
+			throw new Error("Not a boolean.");
+		}
+		return mBoolean;
+	}
+
+	/**
+	 * Integral values that a double holds exactly print in plain form, others
+	 * in Java's form with the mantissa's trailing zeros trimmed.
+	 */
+	static String format(double number) {
+		if (number == (long) number && Math.abs(number) <= KMaxExactInteger && (number != 0 || 1 / number > 0)) {
+			return Long.toString((long) number);
+		}
+		String str = String.valueOf(number);
+		int exponent = str.indexOf('E');
+		int end = exponent < 0 ? str.length() : exponent;
+		if (str.indexOf('.') >= 0) {
+			while (str.charAt(end - 1) == '0') {
+				end--;
+			}
+			if (str.charAt(end - 1) == '.') {
+				end--;
+			}
 		}
-		return mValue;
+		return exponent < 0 ? str.substring(0, end) : str.substring(0, end) + str.substring(exponent);
 	}
 
 	GenericVar getFirst() {
@@ -78,37 +212,47 @@ class GenericVar {
 		return mTupleVars[1];
 	}
 
-	String getVariableName() {
-		if (mType == Type.tuple) {
-			throw new Error("Unable to access variable name of tuple.");
-		}
-		return mVariableName;
-	}
-
-	void setVariableName(String var) {
-		if (mType == Type.tuple) {
-			throw new Error("Unable to access variable name of tuple.");
-		}
-		mVariableName = var;
-	}
-
 	public String toString() {
 		switch(this.mType) {
-			case string: return '"' + mValue + '"';
+			case string: return '"' + get() + '"';
 			case object: return '{' + mValue + '}';
 			case tuple: return mTupleVars[0] + " : " + mTupleVars[1];
-			default: return mValue;
+			default: return get();
+		}
+	}
+
+	/** Array of the first count elements, its properties sized for them at once. */
+	static GenericVar array(GenericVar[] elements, int count) {
+		GenericVar array = new GenericVar(Type.object, "");
+		if (count != 0) {
+			array.mProperties = new HashMap<>(count * 4 / 3 + 1);
+			for (int i = 0; i != count; i++) {
+				array.mProperties.put(of(i), elements[i]);
+			}
 		}
+		return array;
 	}
 
+	/* Only used while building a new object, before it is shared. */
 	void addProperty(GenericVar key, GenericVar value) throws InterpreterException {
 		if (key.getType() == Type.number || key.getType() == Type.string) {
+			if (mProperties == null) {
+				mProperties = new HashMap<>();
+			}
 			mProperties.put(key, value);
 		} else {
 			throw new InterpreterException("Invalid Key: " + key.get());
 		}
 	}
 
+	int getPropertyCount() {
+		return mProperties == null ? 0 : mProperties.size();
+	}
+
+	Map<GenericVar, GenericVar> getProperties() {
+		return mProperties == null ? Collections.<GenericVar, GenericVar>emptyMap() : Collections.unmodifiableMap(mProperties);
+	}
+
 	GenericVar getProperty(GenericVar key) throws InterpreterException {
 		Type _type = key.getType();
 		if (_type != Type.string && _type != Type.number) {
@@ -117,12 +261,100 @@ class GenericVar {
 		if (mType == Type.undefined || (mType == Type.object && mValue.equals("null"))) {
 			throw new InterpreterException("Cannot read property '" + key.get() + "' of " + mValue);
 		}
+		if (mProperties == null) {
+			return UNDEFINED;
+		}
 		for (Map.Entry<GenericVar, GenericVar> i : mProperties.entrySet()) {
-			if (i.getKey().getType() == _type && i.getKey().get().equals(key.get())) {
+			GenericVar _key = i.getKey();
+			if (_key.getType() == _type && (_type == Type.number ? Double.compare(_key.mNumber, key.mNumber) == 0 : _key.get().equals(key.get()))) {
 				return i.getValue();
 			}
 		}
-		return new GenericVar(Type.undefined, "undefined");
+		return UNDEFINED;
+	}
+}
+
+
+/**
+ * String made by + or += concatenation, kept as its two halves until its text
+ * is needed, so that appending to a long string copies nothing. The text is
+ * built on the first read, without recursion however deep the halves nest,
+ * and the halves are then dropped.
+ */
+final class Rope extends GenericVar {
+	/* Shorter results are copied right away, cheaper than a rope to read. */
+	private static final int KMinLength = 64;
+
+	private final int mLength;
+	/* Cleared once mText is set, so a reader seeing null finds the text. */
+	private volatile GenericVar mLeft;
+	private volatile GenericVar mRight;
+	private volatile String mText;
+
+	private Rope(GenericVar left, GenericVar right, int length) {
+		super(Type.string, null);
+		this.mLeft = left;
+		this.mRight = right;
+		this.mLength = length;
+	}
+
+	/** Text of the two values one after the other, as a string value. */
+	static GenericVar concat(GenericVar left, GenericVar right) throws InterpreterException {
+		long length = (long) length(left) + length(right);
+		if (length < KMinLength) {
+			return new GenericVar(Type.string, left.get() + right.get());
+		}
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new InterpreterException("Invalid string length");
+		}
+		return new Rope(left, right, (int) length);
+	}
+
+	/** Length of the value's text, without building it for a rope. */
+	static int length(GenericVar var) {
+		return var instanceof Rope ? ((Rope) var).mLength : var.get().length();
+	}
+
+	String get() {
+		String text = mText;
+		return text != null ? text : flatten();
+	}
+
+	private String flatten() {
+		GenericVar left = mLeft;
+		GenericVar right = mRight;
+		if (left == null || right == null) {
+			return mText;
+		}
+		StringBuilder builder = new StringBuilder(mLength);
+		ArrayDeque<GenericVar> pending = new ArrayDeque<>();
+		pending.push(right);
+		pending.push(left);
+		while (!pending.isEmpty()) {
+			GenericVar part = pending.pop();
+			if (!(part instanceof Rope)) {
+				builder.append(part.get());
+				continue;
+			}
+			Rope rope = (Rope) part;
+			String text = rope.mText;
+			if (text == null) {
+				GenericVar partLeft = rope.mLeft;
+				GenericVar partRight = rope.mRight;
+				if (partLeft != null && partRight != null) {
+					pending.push(partRight);
+					pending.push(partLeft);
+					continue;
+				}
+				text = rope.mText;
+			}
+			builder.append(text);
+		}
+		String text = builder.toString();
+		mText = text;
+		mLeft = null;
+		mRight = null;
+		return text;
 	}
 }
 
@@ -195,36 +427,207 @@ class Operator {
 		throw new Error("Method compute(String) Not initialized");
 	}
 
+	/**
+	 * Assignment operators are given the variable their operand names, along
+	 * with its current value, instead of being computed. Their operand has to
+	 * be a variable.
+	 */
+	protected boolean assigns() {
+		return false;
+	}
+
+	public GenericVar assign(ExecutionContext context, VariableNode target, GenericVar current, GenericVar value) throws InterpreterException {
+		throw new Error("Method assign(ExecutionContext, VariableNode, GenericVar, GenericVar) Not initialized");
+	}
+
+	public GenericVar assign(ExecutionContext context, VariableNode target, GenericVar current) throws InterpreterException {
+		throw new Error("Method assign(ExecutionContext, VariableNode, GenericVar) Not initialized");
+	}
+
+	/**
+	 * Operators that only evaluate the operands they need are given the
+	 * right operand's node instead of its value, IE: the right side of && is
+	 * skipped once the left side is false. The left side is always needed,
+	 * and comes evaluated and checked. The node evaluates the operand select
+	 * returns, so the operator's own work can be timed apart from it, and
+	 * complete then computes the result.
+	 */
+	protected boolean evaluatesLazily() {
+		return false;
+	}
+
+	/**
+	 * The node a lazy operator needs the value of: after, a part of it, or
+	 * null if before decides the result.
+	 */
+	public Node select(GenericVar before, Node after) throws InterpreterException {
+		throw new Error("Method select(GenericVar, Node) Not initialized");
+	}
+
+	/**
+	 * The result of a lazy operator, value being that of the node select
+	 * returned, or null if it returned none.
+	 */
+	public GenericVar complete(GenericVar before, Node after, GenericVar value) throws InterpreterException {
+		throw new Error("Method complete(GenericVar, Node, GenericVar) Not initialized");
+	}
+
+	/**
+	 * An identifier to the right of this operator is a property name, not a
+	 * variable. IE: arr.length
+	 */
+	protected boolean takesPropertyName() {
+		return false;
+	}
+
+	/**
+	 * Pure operators have no side effects, never fail on operands that are not
+	 * tuples or sequences, and return either a new value or an operand left
+	 * unchanged. The optimizer folds, drops and shares them.
+	 */
+	protected boolean isPure() {
+		return false;
+	}
+
+	/**
+	 * Wrappers that parse their content receive the value of the compiled
+	 * content through compute(GenericVar) instead of the raw text.
+	 */
+	protected boolean parsesContent() {
+		return false;
+	}
+
+	/**
+	 * compute(GenericVar, GenericVar) for operands of exactly these types,
+	 * skipping the coercions the general one goes through, or null if there
+	 * is none. Each operator site asks once, for the types it sees first, and
+	 * goes back to compute for good when other types show up.
+	 */
+	protected Specialization specialize(Type before, Type after) {
+		return null;
+	}
+
 	public String toString() {
 		return "Bound_Operator[" + symbol + "]";
 	}
 }
 
 
+/**
+ * Binary compute of an operator for operands of known types.
+ */
+interface Specialization {
+	GenericVar compute(GenericVar before, GenericVar after) throws InterpreterException;
+}
+
+
 class OperatorStore {
-	private ArrayList<Operator> operators = new ArrayList<>();
+	private static final List<Operator> NONE = Collections.emptyList();
+
+	/**
+	 * Prefix trie over operator symbols. Each branch holds the operators whose
+	 * symbol ends there, in registration order.
+	 */
+	private static class Branch {
+		private Branch[] ascii;
+		private HashMap<Character, Branch> other;
+		private List<Operator> group = NONE;
+		private ArrayList<Operator> operators;
 
-	ArrayList<Operator> get(String str, int start) {
-		ArrayList<Operator> qualified = new ArrayList<>();
-		int max = 0;
-		for (Operator o : operators) {
-			String symbol = o.getSymbol();
-			if (symbol.length() >= max && symbol.length() + start <= str.length() && symbol.equals(str.substring(start, start + symbol.length()))) {
-				max = symbol.length();
-				qualified.add(o);
+		Branch get(char c) {
+			if (c < 128) {
+				return ascii == null ? null : ascii[c];
 			}
+			return other == null ? null : other.get(c);
 		}
-		for (int i = 0; i != qualified.size(); i++) {
-			/* Longer match takes priority over the priority attribute */
-			if (qualified.get(i).getSymbol().length() < max) {
-				qualified.remove(i--);
+
+		Branch getOrCreate(char c) {
+			Branch branch = get(c);
+			if (branch == null) {
+				branch = new Branch();
+				if (c < 128) {
+					if (ascii == null) {
+						ascii = new Branch[128];
+					}
+					ascii[c] = branch;
+				} else {
+					if (other == null) {
+						other = new HashMap<>();
+					}
+					other.put(c, branch);
+				}
+			}
+			return branch;
+		}
+
+		void add(Operator operator) {
+			if (operators == null) {
+				operators = new ArrayList<>();
+				group = Collections.unmodifiableList(operators);
+			}
+			operators.add(operator);
+		}
+	}
+
+	private Branch root = new Branch();
+	private ArrayList<Operator> operators = new ArrayList<>();
+	private boolean mFrozen = false;
+
+	OperatorStore() {
+	}
+
+	/**
+	 * Starts a new dialect from the operators of base.
+	 */
+	OperatorStore(OperatorStore base) {
+		for (Operator o : base.operators) {
+			add(o);
+		}
+	}
+
+	/**
+	 * Returns the operators with the longest symbol matching str at start.
+	 * Longer match takes priority over the priority attribute.
+	 */
+	List<Operator> get(CharSequence str, int start) {
+		List<Operator> qualified = NONE;
+		Branch branch = root;
+		for (int i = start, KLength = str.length(); i < KLength; i++) {
+			branch = branch.get(str.charAt(i));
+			if (branch == null) {
+				break;
+			}
+			if (branch.group != NONE) {
+				qualified = branch.group;
 			}
 		}
 		return qualified;
 	}
 
 	void add(Operator operator) {
+		if (mFrozen) {
+			throw new Error("OperatorStore is frozen, extend it with new OperatorStore(store) instead.");
+		}
 		operators.add(operator);
+		String symbol = operator.getSymbol();
+		Branch branch = root;
+		for (int i = 0; i != symbol.length(); i++) {
+			branch = branch.getOrCreate(symbol.charAt(i));
+		}
+		branch.add(operator);
+	}
+
+	/**
+	 * Makes the store read-only so it can be shared between threads and
+	 * interpreters without copying.
+	 */
+	OperatorStore freeze() {
+		mFrozen = true;
+		return this;
+	}
+
+	boolean isFrozen() {
+		return mFrozen;
 	}
 }
 
@@ -233,121 +636,151 @@ class CommandChain {
 	private ArrayList<Object> chain = new ArrayList<>();
 	private ArrayList<Boolean> operator = new ArrayList<>();
 
-	void add(GenericVar var) {
-		chain.add(var);
+	void add(Node node) {
+		chain.add(node);
 		operator.add(false);
 	}
 
-	void add(ArrayList<Operator> o) {
+	void add(List<Operator> o) {
 		chain.add(o);
 		operator.add(true);
 	}
 
-	private SimpleEntry<Integer, Integer> getMaxOpPos() throws InterpreterException {
-		int maxPrecedence = 0;
-		int maxIndex = 0;
-		int iii = 0;
-		boolean set = false;
-		for (int i = 0; i != operator.size(); i++) {
-			if (operator.get(i)) {
-				ArrayList qualified = (ArrayList) chain.get(i);
-				for (int ii = 0; ii != qualified.size(); ii++) {
-					Operator op = (Operator) qualified.get(ii);
-					if (op.getPriority() > maxPrecedence) {
-						if (op.getOperatorType() == OperatorType.before && (i < 1 || operator.get(i - 1)) && i < operator.size() - 1 && !operator.get(i + 1) ||
-								op.getOperatorType() == OperatorType.between && i > 0 && i < operator.size() - 1 && !operator.get(i + 1) && !operator.get(i - 1) ||
-								op.getOperatorType() == OperatorType.after && (i > operator.size() - 2 || operator.get(i + 1)) && i > 0 && !operator.get(i - 1)) {
-							maxPrecedence = op.getPriority();
-							maxIndex = i;
-							iii = ii;
-							set = true;
-						}
-					}
-				}
+	private int position;
+
+	/**
+	 * Returns the candidate of the given type with the highest priority, the
+	 * first one registered winning ties.
+	 */
+	private static Operator select(List<Operator> qualified, OperatorType type) {
+		Operator selected = null;
+		for (int i = 0, KSize = qualified.size(); i != KSize; i++) {
+			Operator op = qualified.get(i);
+			if (op.getOperatorType() == type && op.getPriority() > (selected == null ? 0 : selected.getPriority())) {
+				selected = op;
 			}
 		}
-		if (!set) {
-			throw new InterpreterException("Unexpected Operator");
-		}
-		return new SimpleEntry<>(maxIndex, iii);
+		return selected;
 	}
 
-	private boolean operators() {
-		for (Boolean i : operator) {
-			if (i) {
-				return true;
+	@SuppressWarnings("unchecked")
+	private List<Operator> group(int i) {
+		return (List<Operator>) chain.get(i);
+	}
+
+	/**
+	 * Parses a value and the prefix operators in front of it. The prefixes
+	 * are applied innermost first in a loop, so a run of them such as
+	 * - - - a takes no stack per operator.
+	 */
+	private Node parseOperand() throws InterpreterException {
+		ArrayList<Operator> prefixes = null;
+		while (true) {
+			if (position >= chain.size()) {
+				throw new InterpreterException("Unexpected Operator");
+			}
+			if (!operator.get(position)) {
+				break;
 			}
+			Operator before = select(group(position), OperatorType.before);
+			if (before == null) {
+				throw new InterpreterException("Unexpected Operator");
+			}
+			position++;
+			if (prefixes == null) {
+				prefixes = new ArrayList<>();
+			}
+			prefixes.add(before);
 		}
-		return false;
+		Node node = (Node) chain.get(position++);
+		for (int i = prefixes == null ? -1 : prefixes.size() - 1; i >= 0; i--) {
+			Operator before = prefixes.get(i);
+			node = unary(before, climb(node, before.getPriority()));
+		}
+		return node;
 	}
 
-	GenericVar evaluate() throws InterpreterException {
-		while (operators()) {
-			System.out.println(chain);
-			SimpleEntry<Integer, Integer> details = getMaxOpPos();
-			int i = details.getKey();
-			int ii = details.getValue();
-			Operator op = (Operator) ((ArrayList) chain.get(i)).get(ii);
-			GenericVar value;
-			switch (op.getOperatorType()) {
-				case before: {
-					GenericVar after = (GenericVar) chain.get(i + 1);
-					if (after.getType() == Type.tuple && !op.supportsTuple()) {
-						throw new InterpreterException("Unexpected colon");
-					}
-					if (after.getType() == Type.sequence && !op.supportsSequence()) {
-						throw new InterpreterException("Unexpected sequence of values");
-					}
-					value = op.compute(after);
-					chain.set(i, value);
-					chain.remove(i + 1);
-					operator.remove(i);
-					break;
+	private static Node unary(Operator operator, Node operand) throws InterpreterException {
+		if (operator.assigns() && !(operand instanceof VariableNode)) {
+			throw new InterpreterException("Invalid left-hand side in assignment");
+		}
+		return new UnaryNode(operator, operand);
+	}
+
+	private static Node binary(Operator operator, Node before, Node after) throws InterpreterException {
+		if (operator.assigns() && !(before instanceof VariableNode)) {
+			throw new InterpreterException("Invalid left-hand side in assignment");
+		}
+		if (operator.takesPropertyName() && after instanceof VariableNode) {
+			after = new ValueNode(Type.string, ((VariableNode) after).getName());
+		}
+		return new BinaryNode(operator, before, after);
+	}
+
+	/**
+	 * Precedence climbing: consumes operators binding tighter than
+	 * minPriority. Equal priorities stop the loop, so operators associate to
+	 * the left like the highest-priority-first reduction did. Assignments
+	 * are the exception: their value takes in the assignments of the same
+	 * priority that follow, so a = b = 3 stores 3 in both.
+	 */
+	private Node parseExpression(int minPriority) throws InterpreterException {
+		return climb(parseOperand(), minPriority);
+	}
+
+	/** Continues the expression whose leftmost operand has been parsed. */
+	private Node climb(Node left, int minPriority) throws InterpreterException {
+		while (position < chain.size() && operator.get(position)) {
+			List<Operator> qualified = group(position);
+			boolean last = position == chain.size() - 1;
+			boolean valueNext = !last && !operator.get(position + 1);
+			Operator nextBefore = last || valueNext ? null : select(group(position + 1), OperatorType.before);
+			Operator between = valueNext || nextBefore != null ? select(qualified, OperatorType.between) : null;
+			Operator after = valueNext ? null : select(qualified, OperatorType.after);
+			if (between != null && after != null) {
+				/* IE: a ++ - b, whichever side would have been reduced first wins. */
+				if (nextBefore.getPriority() > after.getPriority()) {
+					after = null;
+				} else {
+					between = null;
 				}
-				case between: {
-					GenericVar before = (GenericVar) chain.get(i - 1);
-					chain.remove(--i);
-					operator.remove(i);
-					GenericVar after = (GenericVar)chain.get(i + 1);
-					chain.remove(i + 1);
-					operator.remove(i);
-					if ((before.getType() == Type.tuple || after.getType() == Type.tuple) && !op.supportsTuple()) {
-						throw new InterpreterException("Unexpected colon");
-					}
-					if ((before.getType() == Type.sequence || after.getType() == Type.sequence) && !op.supportsSequence()) {
-						throw new InterpreterException("Unexpected sequence of values");
-					}
-					value = op.compute(before, after);
-					chain.set(i, value);
+			}
+			if (after != null) {
+				if (after.getPriority() <= minPriority) {
 					break;
 				}
-				case after: {
-					GenericVar before = (GenericVar) chain.get(i - 1);
-					if (before.getType() == Type.tuple && !op.supportsTuple()) {
-						throw new InterpreterException("Unexpected colon");
-					}
-					if (before.getType() == Type.sequence && !op.supportsSequence()) {
-						throw new InterpreterException("Unexpected sequence of values");
-					}
-					value = op.compute(before);
-					chain.set(i, value);
-					chain.remove(i - 1);
-					operator.remove(i);
+				position++;
+				left = unary(after, left);
+			} else if (between != null) {
+				if (between.getPriority() <= minPriority) {
 					break;
 				}
-				default: {
-					throw new Error("Unhandled operator type: " + op.getOperatorType());
-				}
+				position++;
+				int priority = between.assigns() ? between.getPriority() - 1 : between.getPriority();
+				left = binary(between, left, parseExpression(priority));
+			} else {
+				throw new InterpreterException("Unexpected Operator");
 			}
 		}
-		if (chain.size() == 0) {
-			return new GenericVar(Type.undefined, "undefined");
-		} else if (chain.size() == 1) {
-			System.out.println(((GenericVar)chain.get(0)).getType());
-			return (GenericVar)chain.get(0);
-		} else {
+		return left;
+	}
+
+	/**
+	 * Builds the expression tree for the chain in a single pass.
+	 */
+	Node reduce() throws InterpreterException {
+		position = 0;
+		Node node = parseExpression(0);
+		boolean unexpectedValue = false;
+		while (position < chain.size()) {
+			/* Two adjacent values; keep going so misplaced operators are reported first. */
+			unexpectedValue = true;
+			parseExpression(0);
+		}
+		if (unexpectedValue) {
 			throw new InterpreterException("Unexpected value");
 		}
+		return node;
 	}
 
 	int size() {
@@ -362,25 +795,61 @@ class Interpreter {
 	 * Don't automatically parse strings into GenericVars,
 	 * if it is necessary, do it in the CommandChain.
 	*/
-	private static HashMap<String, GenericVar> variables = new HashMap<>();
-	private OperatorStore operators = new OperatorStore();
+	private final OperatorStore operators;
+	private final ScriptCache cache;
+	private final ExecutionContext context = new ExecutionContext();
+	private ExecutionListener listener = null;
+	private ExecutionLimits limits = null;
+	private Engine engine = ExecutionContext.DEFAULT_ENGINE;
 
-	private static GenericVar getVariable(String varName) throws InterpreterException {
-		GenericVar entry = variables.get(varName);
-		if (entry == null) {
-			return new GenericVar(Type.undefined, "undefined", varName);
-		} else {
-			return entry;
-		}
+	ExecutionContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Attaches the listener to this interpreter's context and to every
+	 * context it creates for interpretAll and executeAll. Executions with a
+	 * listener, InterpreterMetrics included, run on the tree whatever the
+	 * engine.
+	 */
+	void setListener(ExecutionListener listener) {
+		this.listener = listener;
+		context.setListener(listener);
+	}
+
+	/**
+	 * Limits every execution of this interpreter, including those of
+	 * interpretAll and executeAll. A script going over a limit is terminated
+	 * with an ExecutionLimitException.
+	 */
+	void setLimits(ExecutionLimits limits) {
+		this.limits = limits;
+		context.setLimits(limits);
+	}
+
+	/**
+	 * Selects the engine of every execution of this interpreter, including
+	 * those of interpretAll and executeAll. Executions with a listener, such
+	 * as InterpreterMetrics, or with limits run on the tree regardless.
+	 */
+	void setEngine(Engine engine) {
+		this.engine = engine;
+		context.setEngine(engine);
 	}
 
-	static GenericVar setVariable(String varName, GenericVar value) throws InterpreterException {
-		variables.put(varName, value);
-		value.setVariableName(varName);
-		return getVariable(varName);
+	ExecutionContext newContext() {
+		ExecutionContext context = new ExecutionContext();
+		context.setListener(listener);
+		context.setLimits(limits);
+		context.setEngine(engine);
+		return context;
 	}
 
-	private GenericVar getValue(String value) throws InterpreterException {
+	GenericVar setVariable(String varName, GenericVar value) {
+		return context.setVariable(varName, value);
+	}
+
+	private Node getValue(String value, Symbols symbols) throws InterpreterException {
 		Type type = null;
 		String computedValue = null;
 		if (value.length() > 1) {
@@ -427,138 +896,349 @@ class Interpreter {
 			}
 		}
 		if (type == null) {
-			return getVariable(value);
+			return new VariableNode(value, symbols.index(value));
 		} else {
-			return new GenericVar(type, computedValue);
+			return new ValueNode(type, computedValue);
+		}
+	}
+
+	private Node[] compileStatements(String command, Symbols symbols) throws InterpreterException {
+		ArrayList<Node> statements = new ArrayList<>();
+		for (int index = 0; index < command.length(); index++) {
+			index = compileStatement(command, index, statements, symbols, false, null);
+		}
+		return statements.toArray(new Node[statements.size()]);
+	}
+
+	/**
+	 * Compiles the content of a wrapper, from index up to the matching close
+	 * symbol, and returns the position of the close symbol. Wrappers nested in
+	 * the content are compiled by the same recursion, so the source is read
+	 * once and never copied.
+	 */
+	private int compileContent(String command, int index, List<Node> statements, Symbols symbols, boolean partial, String close) throws InterpreterException {
+		while (true) {
+			int end = compileStatement(command, index, statements, symbols, partial, close);
+			if (end == -1) {
+				return -1;
+			}
+			if (end == command.length()) {
+				throw new InterpreterException("Unclosed token");
+			}
+			if (command.startsWith(close, end)) {
+				return end;
+			}
+			index = end + 1;
 		}
 	}
 
-	private GenericVar evaluate(String command) throws InterpreterException {
-		GenericVar lastAnswer = new GenericVar(Type.undefined, "undefined");
+	private static boolean blank(String command, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (command.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compiles the statement starting at index into statements and returns the
+	 * position of its terminator, or command.length() when the input ends
+	 * first. With partial set, a statement the input ends in the middle of is
+	 * left alone and -1 is returned so the caller can wait for more input.
+	 * Identifiers are numbered in symbols.
+	 */
+	int compileStatement(String command, int index, List<Node> statements, Symbols symbols, boolean partial) throws InterpreterException {
+		return compileStatement(command, index, statements, symbols, partial, null);
+	}
+
+	/**
+	 * Inside a wrapper, close is its close symbol, which ends the statement
+	 * and is returned as its terminator.
+	 */
+	private int compileStatement(String command, int index, List<Node> statements, Symbols symbols, boolean partial, String close) throws InterpreterException {
 		int KCommandLength = command.length();
-		for (int index = 0; index < KCommandLength; index++) {
-			CommandChain commandChain = new CommandChain();
-			int rangeSelectorBefore = index; /* Used for both wrapper operators and plain-text tokens IE: null, undefined, 123.7, ... */
-			boolean rangeOpen = false;
-			Operator wrapper = null;
-			int finalValue = KCommandLength;
-			ArrayList<Operator> previousSupported = null;
-			ArrayList<Operator> supported = null;
-			for (int i = index; i < KCommandLength; i++) {
-				boolean newLine = command.charAt(i) == '\n';
-				boolean semicolon = command.charAt(i) == ';';
-				if (wrapper == null) {
-					boolean zeroLength = command.substring(rangeSelectorBefore, i).trim().length() == 0;
-					if (!zeroLength) {
-						previousSupported = supported;
-					}
-					supported = operators.get(command, i);
-					int KSupportedLength = supported.size();
-					if (KSupportedLength == 0) {
-						if (!rangeOpen || zeroLength) {
-							if (previousSupported != null) {
-								for (int ii = 0, iii = previousSupported.size(); ii != iii; ii++) {
-									if (newLine || semicolon) {
-										newLine = newLine && previousSupported.get(ii).breakOnNewline();
-										semicolon = semicolon && previousSupported.get(ii).breakOnSemicolon();
-									} else {
-										break;
-									}
+		CommandChain commandChain = new CommandChain();
+		int rangeSelectorBefore = index; /* Used for both wrapper operators and plain-text tokens IE: null, undefined, 123.7, ... */
+		boolean rangeOpen = false;
+		Operator wrapper = null;
+		int finalValue = KCommandLength;
+		List<Operator> previousSupported = null;
+		List<Operator> supported = null;
+		for (int i = index; i < KCommandLength; i++) {
+			boolean newLine = command.charAt(i) == '\n';
+			boolean semicolon = command.charAt(i) == ';';
+			if (wrapper == null) {
+				if (close != null && command.startsWith(close, i)) {
+					finalValue = i;
+					break;
+				}
+				boolean zeroLength = blank(command, rangeSelectorBefore, i);
+				if (!zeroLength) {
+					previousSupported = supported;
+				}
+				supported = operators.get(command, i);
+				int KSupportedLength = supported.size();
+				if (KSupportedLength == 0) {
+					if (!rangeOpen || zeroLength) {
+						if (previousSupported != null) {
+							for (int ii = 0, iii = previousSupported.size(); ii != iii; ii++) {
+								if (newLine || semicolon) {
+									newLine = newLine && previousSupported.get(ii).breakOnNewline();
+									semicolon = semicolon && previousSupported.get(ii).breakOnSemicolon();
+								} else {
+									break;
 								}
 							}
 						}
-						if (!rangeOpen) {
-							rangeOpen = true;
-							rangeSelectorBefore = i;
-						}
-					} else {
-						for (int ii = 0; ii != KSupportedLength; ii++) {
-							if (newLine || semicolon) {
-								newLine = newLine && supported.get(ii).breakOnNewline();
-								semicolon = semicolon && supported.get(ii).breakOnSemicolon();
-							} else {
-								break;
-							}
+					}
+					if (!rangeOpen) {
+						rangeOpen = true;
+						rangeSelectorBefore = i;
+					}
+				} else {
+					for (int ii = 0; ii != KSupportedLength; ii++) {
+						if (newLine || semicolon) {
+							newLine = newLine && supported.get(ii).breakOnNewline();
+							semicolon = semicolon && supported.get(ii).breakOnSemicolon();
+						} else {
+							break;
 						}
-						if (rangeOpen) {
-							rangeOpen = false;
-							String str = command.substring(rangeSelectorBefore, i).trim();
-							if (str.length() != 0) {
-								commandChain.add(getValue(str));
-							}
+					}
+					if (rangeOpen) {
+						rangeOpen = false;
+						String str = command.substring(rangeSelectorBefore, i).trim();
+						if (str.length() != 0) {
+							commandChain.add(getValue(str, symbols));
 						}
-						int maxOpLength = 1;
-						for (int ii = 0; ii != KSupportedLength; ii++) {
-							Operator currOperator = supported.get(ii);
-							int symbolLength = currOperator.getSymbol().length();
-							if (symbolLength > maxOpLength) {
-								maxOpLength = symbolLength;
-							}
-							if (currOperator.getOperatorType() == OperatorType.wrapper) {
-								wrapper = currOperator;
-								rangeSelectorBefore = i + symbolLength;
-								break;
-							}
+					}
+					int maxOpLength = 1;
+					Operator opened = null;
+					for (int ii = 0; ii != KSupportedLength; ii++) {
+						Operator currOperator = supported.get(ii);
+						int symbolLength = currOperator.getSymbol().length();
+						if (symbolLength > maxOpLength) {
+							maxOpLength = symbolLength;
 						}
-						if (wrapper == null) {
-							commandChain.add(supported);
-							i += maxOpLength - 1;
+						if (currOperator.getOperatorType() == OperatorType.wrapper) {
+							opened = currOperator;
+							rangeSelectorBefore = i + symbolLength;
+							break;
 						}
 					}
-				} else {
-					if (newLine || semicolon) {
-						newLine = newLine && wrapper.breakOnNewline();
-						semicolon = semicolon && wrapper.breakOnSemicolon();
-					}
-					String secondSymbol = wrapper.getSecondSymbol();
-					int KLength = secondSymbol.length();
-					if (command.substring(i, i + KLength).equals(secondSymbol)) {
-						commandChain.add(wrapper.compute(command.substring(rangeSelectorBefore, i)));
-						i += KLength - 1;
-						wrapper = null;
+					if (opened == null) {
+						commandChain.add(supported);
+						i += maxOpLength - 1;
+					} else if (opened.parsesContent()) {
+						ArrayList<Node> content = new ArrayList<>();
+						int end = compileContent(command, rangeSelectorBefore, content, symbols, partial, opened.getSecondSymbol());
+						if (end == -1) {
+							return -1;
+						}
+						commandChain.add(new WrapperNode(opened, content.toArray(new Node[content.size()])));
+						rangeSelectorBefore = end;
+						i = end + opened.getSecondSymbol().length() - 1;
 						previousSupported = null;
 						supported = null;
+					} else {
+						wrapper = opened;
 					}
 				}
+			} else {
 				if (newLine || semicolon) {
-					index = i;
-					finalValue = i;
-					break;
+					newLine = newLine && wrapper.breakOnNewline();
+					semicolon = semicolon && wrapper.breakOnSemicolon();
 				}
-			}
-			if (wrapper == null) {
-				if (rangeOpen) {
-					String str = command.substring(rangeSelectorBefore, finalValue).trim();
-					if (str.length() != 0) {
-						commandChain.add(getValue(str));
-					}
+				String secondSymbol = wrapper.getSecondSymbol();
+				if (command.startsWith(secondSymbol, i)) {
+					commandChain.add(new ValueNode(wrapper.compute(command.substring(rangeSelectorBefore, i))));
+					i += secondSymbol.length() - 1;
+					wrapper = null;
+					previousSupported = null;
+					supported = null;
 				}
-			} else {
-				throw new InterpreterException("Unclosed token");
 			}
-			index = finalValue;
-			if (commandChain.size() != 0) {
-				lastAnswer = commandChain.evaluate();
+			if (newLine || semicolon) {
+				finalValue = i;
+				break;
 			}
 		}
-		return lastAnswer;
+		if (partial && finalValue == KCommandLength) {
+			return -1;
+		}
+		if (wrapper == null) {
+			if (rangeOpen) {
+				String str = command.substring(rangeSelectorBefore, finalValue).trim();
+				if (str.length() != 0) {
+					commandChain.add(getValue(str, symbols));
+				}
+			}
+		} else {
+			throw new InterpreterException("Unclosed token");
+		}
+		if (commandChain.size() != 0) {
+			statements.add(commandChain.reduce());
+		}
+		return finalValue;
+	}
+
+	/**
+	 * Parses the code once into an immutable script that can be executed any
+	 * number of times without touching the source again. Sources found in
+	 * the cache are not parsed at all.
+	 */
+	CompiledScript compile(String code) throws InterpreterException {
+		if (cache == null) {
+			return parse(code);
+		}
+		CompiledScript script = cache.get(operators, code);
+		if (script == null) {
+			script = parse(code);
+			cache.put(operators, code, script);
+		}
+		return script;
 	}
 
-	private GenericVar run(String code) throws InterpreterException {
+	private CompiledScript parse(String code) throws InterpreterException {
+		Symbols symbols = new Symbols();
+		try {
+			Node[] statements = compileStatements(code, symbols);
+			return new CompiledScript(Optimizer.optimize(statements), symbols.toArray());
+		} catch (StackOverflowError err) {
+			throw new InterpreterException("Script is nested too deeply");
+		}
+	}
+
+	private GenericVar run(String code, ExecutionContext context) throws InterpreterException {
 		/* Structural Wrappers (braces, parentheses) should come into play here. */
-		return evaluate(code);
+		return compile(code).execute(context);
 	}
 
 	GenericVar interpret(String code) {
+		return interpret(code, context);
+	}
+
+	static GenericVar terminated(InterpreterException err) {
+		return new GenericVar(Type.string, err.getMessage() + "\nProgram Terminated.");
+	}
+
+	GenericVar interpret(String code, ExecutionContext context) {
 		try {
-			return run(code);
+			return run(code, context);
 		} catch (InterpreterException err) {
-			return new GenericVar(Type.string, err.getMessage() + "\nProgram Terminated.");
+			return terminated(err);
 		}
 	}
 
+	GenericVar execute(CompiledScript script) {
+		return execute(script, context);
+	}
+
+	GenericVar execute(CompiledScript script, ExecutionContext context) {
+		try {
+			return script.execute(context);
+		} catch (InterpreterException err) {
+			return terminated(err);
+		}
+	}
+
+	/**
+	 * Virtual threads when the runtime provides them (JDK 21+), the common
+	 * fork-join pool otherwise.
+	 */
+	private static ExecutorService defaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException err) {
+			return ForkJoinPool.commonPool();
+		}
+	}
+
+	private static final ExecutorService DEFAULT_EXECUTOR = defaultExecutor();
+
+	private static List<GenericVar> invokeAll(ExecutorService executor, List<Callable<GenericVar>> jobs) throws InterruptedException {
+		List<Future<GenericVar>> futures = executor.invokeAll(jobs);
+		List<GenericVar> results = new ArrayList<>(futures.size());
+		for (Future<GenericVar> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException err) {
+				Throwable cause = err.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw (Error) cause;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Interprets every script in its own ExecutionContext, spreading the work
+	 * over the executor. Results are returned in the order of the scripts.
+	 */
+	List<GenericVar> interpretAll(List<String> scripts) throws InterruptedException {
+		return interpretAll(scripts, DEFAULT_EXECUTOR);
+	}
+
+	List<GenericVar> interpretAll(List<String> scripts, ExecutorService executor) throws InterruptedException {
+		List<Callable<GenericVar>> jobs = new ArrayList<>(scripts.size());
+		for (final String script : scripts) {
+			jobs.add(new Callable<GenericVar>() {
+				public GenericVar call() {
+					return interpret(script, newContext());
+				}
+			});
+		}
+		return invokeAll(executor, jobs);
+	}
+
+	/**
+	 * Executes the script once per set of bindings, each run in a fresh
+	 * ExecutionContext holding its bindings.
+	 */
+	List<GenericVar> executeAll(CompiledScript script, List<? extends Map<String, GenericVar>> bindings) throws InterruptedException {
+		return executeAll(script, bindings, DEFAULT_EXECUTOR);
+	}
+
+	List<GenericVar> executeAll(final CompiledScript script, List<? extends Map<String, GenericVar>> bindings, ExecutorService executor) throws InterruptedException {
+		List<Callable<GenericVar>> jobs = new ArrayList<>(bindings.size());
+		for (final Map<String, GenericVar> binding : bindings) {
+			jobs.add(new Callable<GenericVar>() {
+				public GenericVar call() {
+					ExecutionContext context = newContext();
+					for (Map.Entry<String, GenericVar> i : binding.entrySet()) {
+						context.setVariable(i.getKey(), i.getValue());
+					}
+					return execute(script, context);
+				}
+			});
+		}
+		return invokeAll(executor, jobs);
+	}
+
 	Interpreter() {
-		CustomOperators.apply(operators);
-		variables.put("exit", new GenericVar(Type.string, "exit", "exit"));
+		this(CustomOperators.DEFAULT);
+	}
+
+	Interpreter(OperatorStore operators) {
+		this(operators, new ScriptCache());
+	}
+
+	/**
+	 * The cache can be shared between interpreters, or null to compile every
+	 * script from scratch.
+	 */
+	Interpreter(OperatorStore operators, ScriptCache cache) {
+		this.operators = operators.freeze();
+		this.cache = cache;
+	}
+
+	OperatorStore getOperators() {
+		return operators;
+	}
+
+	ScriptCache getCache() {
+		return cache;
 	}
 }
@@ -1,29 +1,69 @@
-import java.util.Scanner;
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 
 public class InterpreterDriver {
+	/**
+	 * Streams the script, executing each statement as soon as it has been
+	 * read. Prints every result with printEach, only the last one otherwise.
+	 */
+	private static void stream(Interpreter interpreter, Reader reader, BufferedWriter out, boolean printEach) throws IOException {
+		ScriptReader script = new ScriptReader(interpreter, reader);
+		GenericVar result = GenericVar.UNDEFINED;
+		try {
+			for (CompiledScript statement = script.next(); statement != null; statement = script.next()) {
+				result = statement.execute(interpreter.getContext());
+				if (printEach) {
+					out.write(result.toString());
+					out.newLine();
+				}
+			}
+		} catch (InterpreterException err) {
+			result = Interpreter.terminated(err);
+			if (printEach) {
+				out.write(result.toString());
+				out.newLine();
+			}
+		}
+		if (!printEach) {
+			out.write(result.toString());
+			out.newLine();
+		}
+		out.flush();
+	}
+
 	public static void main(String[] arguments) {
 		Interpreter interpreter = new Interpreter();
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out));
 		if (arguments.length == 0) {
-			Scanner scan = new Scanner(System.in);
-			while (true) {
-				System.out.print(">> ");
-				String result = interpreter.interpret(scan.nextLine()).toString();
-				if (result.equals("\"exit\"")) {
-					break;
+			try {
+				BufferedReader scan = new BufferedReader(new InputStreamReader(System.in));
+				while (true) {
+					out.write(">> ");
+					out.flush();
+					String line = scan.readLine();
+					if (line == null) {
+						break;
+					}
+					String result = interpreter.interpret(line).toString();
+					if (result.equals("\"exit\"")) {
+						break;
+					}
+					out.write(result);
+					out.newLine();
 				}
-				System.out.println(result);
+				out.flush();
+			} catch (IOException err) {
+				err.printStackTrace();
 			}
-		} else if (arguments.length == 1) {
-			try {
-				File fileObj = new File(arguments[0]);
-				Path file = fileObj.toPath();
-				byte[] fileArray = Files.readAllBytes(file);
-				String result = interpreter.interpret(new String(fileArray)).toString();
-				System.out.println(result);
+		} else if (arguments.length == 1 || arguments.length == 2 && arguments[0].equals("--each")) {
+			String file = arguments[arguments.length - 1];
+			try (Reader reader = new InputStreamReader(file.equals("-") ? System.in : new FileInputStream(file))) {
+				stream(interpreter, reader, out, arguments.length == 2);
 			} catch (IOException err) {
 				err.printStackTrace();
 			}
@@ -31,4 +71,4 @@ public class InterpreterDriver {
 			throw new Error("Invalid Arguments");
 		}
 	}
-}
\ No newline at end of file
+}
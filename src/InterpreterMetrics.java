@@ -0,0 +1,225 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Execution metrics collected as an ExecutionListener: statement counts and,
+ * per operator, a call count and a log2 latency histogram. All counters are
+ * striped LongAdders, so one instance can be shared by every context of
+ * every thread without them contending on a lock.
+ *
+ * Attaching metrics changes what is measured: only the tree interpreter
+ * reports to listeners, so a context with metrics runs every script on it,
+ * whatever engine is selected, and compiled code is never used. The figures
+ * describe the tree interpreter, which is several times slower than the
+ * opcodes engine or compiled code on hot scripts.
+ */
+
+class InterpreterMetrics implements ExecutionListener, InterpreterMetricsMXBean {
+	private static final int BUCKETS = 64;
+
+	private static class OperatorStats {
+		private final Operator operator;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+		OperatorStats(Operator operator) {
+			this.operator = operator;
+			for (int i = 0; i != BUCKETS; i++) {
+				histogram[i] = new LongAdder();
+			}
+		}
+
+		void record(long elapsed) {
+			count.increment();
+			nanos.add(elapsed);
+			histogram[Math.max(0, 63 - Long.numberOfLeadingZeros(elapsed))].increment();
+		}
+
+		OperatorSnapshot snapshot() {
+			long[] buckets = new long[BUCKETS];
+			for (int i = 0; i != BUCKETS; i++) {
+				buckets[i] = histogram[i].sum();
+			}
+			return new OperatorSnapshot(operator.getSymbol(), operator.getOperatorType(), count.sum(), nanos.sum(), buckets);
+		}
+	}
+
+	private final LongAdder statements = new LongAdder();
+	private final ConcurrentHashMap<Operator, OperatorStats> operators = new ConcurrentHashMap<>();
+	private ObjectName name = null;
+
+	private OperatorStats stats(Operator operator) {
+		OperatorStats stats = operators.get(operator);
+		if (stats == null) {
+			stats = operators.computeIfAbsent(operator, OperatorStats::new);
+		}
+		return stats;
+	}
+
+	public void statementStarted(Node statement) {
+		statements.increment();
+	}
+
+	public void operatorReduced(Operator operator, GenericVar param1, GenericVar param2, GenericVar result, long nanos) {
+		stats(operator).record(nanos);
+	}
+
+	public void wrapperEvaluated(Operator wrapper, GenericVar content, GenericVar result, long nanos) {
+		stats(wrapper).record(nanos);
+	}
+
+	MetricsSnapshot snapshot() {
+		List<OperatorSnapshot> snapshots = new ArrayList<>();
+		for (OperatorStats stats : operators.values()) {
+			snapshots.add(stats.snapshot());
+		}
+		return new MetricsSnapshot(statements.sum(), snapshots);
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server as
+	 * Interpreter:type=Metrics,name=&lt;name&gt;.
+	 */
+	void register(String name) throws JMException {
+		ObjectName objectName = new ObjectName("Interpreter:type=Metrics,name=" + name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, InterpreterMetricsMXBean.class, true), objectName);
+		this.name = objectName;
+	}
+
+	void unregister() throws JMException {
+		if (name != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			name = null;
+		}
+	}
+
+	public long getStatementCount() {
+		return statements.sum();
+	}
+
+	private interface Metric {
+		long of(OperatorSnapshot operator);
+	}
+
+	private Map<String, Long> collect(Metric metric, boolean wrappersOnly) {
+		TreeMap<String, Long> values = new TreeMap<>();
+		for (OperatorSnapshot operator : snapshot().getOperators()) {
+			if (!wrappersOnly || operator.getType() == OperatorType.wrapper) {
+				String key = operator.getSymbol() + " " + operator.getType();
+				Long previous = values.get(key);
+				values.put(key, (previous == null ? 0 : previous) + metric.of(operator));
+			}
+		}
+		return values;
+	}
+
+	public Map<String, Long> getOperatorCounts() {
+		return collect(OperatorSnapshot::getCount, false);
+	}
+
+	public Map<String, Long> getOperatorTotalNanos() {
+		return collect(OperatorSnapshot::getTotalNanos, false);
+	}
+
+	public Map<String, Long> getOperatorMedianNanos() {
+		return collect(operator -> operator.percentile(0.5), false);
+	}
+
+	public Map<String, Long> getOperator99thPercentileNanos() {
+		return collect(operator -> operator.percentile(0.99), false);
+	}
+
+	public Map<String, Long> getWrapperEntries() {
+		return collect(OperatorSnapshot::getCount, true);
+	}
+
+	public void reset() {
+		statements.reset();
+		operators.clear();
+	}
+}
+
+
+class MetricsSnapshot {
+	private final long statements;
+	private final List<OperatorSnapshot> operators;
+
+	MetricsSnapshot(long statements, List<OperatorSnapshot> operators) {
+		this.statements = statements;
+		this.operators = Collections.unmodifiableList(operators);
+	}
+
+	long getStatementCount() {
+		return statements;
+	}
+
+	List<OperatorSnapshot> getOperators() {
+		return operators;
+	}
+}
+
+
+class OperatorSnapshot {
+	private final String symbol;
+	private final OperatorType type;
+	private final long count;
+	private final long totalNanos;
+	private final long[] histogram;
+
+	OperatorSnapshot(String symbol, OperatorType type, long count, long totalNanos, long[] histogram) {
+		this.symbol = symbol;
+		this.type = type;
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.histogram = histogram;
+	}
+
+	String getSymbol() {
+		return symbol;
+	}
+
+	OperatorType getType() {
+		return type;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * Upper bound of the histogram bucket holding the given quantile. Buckets
+	 * are powers of two, so this is accurate to within a factor of two.
+	 */
+	long percentile(double quantile) {
+		long total = 0;
+		for (long bucket : histogram) {
+			total += bucket;
+		}
+		long seen = 0;
+		for (int i = 0; i != histogram.length; i++) {
+			seen += histogram[i];
+			if (total != 0 && seen >= quantile * total) {
+				return i == 63 ? Long.MAX_VALUE : (2L << i) - 1;
+			}
+		}
+		return 0;
+	}
+
+	public String toString() {
+		return symbol + " " + type + ": " + count + " calls, " + totalNanos + "ns";
+	}
+}
@@ -0,0 +1,22 @@
+import java.util.Map;
+
+/**
+ * JMX view of InterpreterMetrics. Operator keys are the symbol followed by
+ * the OperatorType, IE: "+ between", "++ after", "( wrapper".
+ */
+
+public interface InterpreterMetricsMXBean {
+	long getStatementCount();
+
+	Map<String, Long> getOperatorCounts();
+
+	Map<String, Long> getOperatorTotalNanos();
+
+	Map<String, Long> getOperatorMedianNanos();
+
+	Map<String, Long> getOperator99thPercentileNanos();
+
+	Map<String, Long> getWrapperEntries();
+
+	void reset();
+}
@@ -0,0 +1,709 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Second tier for scripts that run often. The statements of a script are
+ * compiled into a class of its own: straight-line code that loads values and
+ * variables and calls the JitSupport helper for each node, with branches only
+ * where the interpreter would skip an operand. The HotSpot compiler then sees
+ * a few methods per script instead of a walk over the node tree, and can
+ * inline the helpers. Large scripts are split over several methods, as
+ * HotSpot does not compile methods of more than 8000 bytes.
+ *
+ * Every class gets its own class loader, so it is unloaded together with
+ * the script once that is no longer referenced, for example after being
+ * evicted from the ScriptCache.
+ *
+ * Compiled code does not report to listeners nor charge budgets; executions
+ * with either run interpreted. So does everything while the force interpret
+ * flag is set, which starts from the interpreter.forceInterpret system
+ * property. The number of runs before a script is compiled starts from the
+ * interpreter.jit.threshold system property.
+ */
+
+class JitCompiler {
+	private static final String KSupport = "JitSupport";
+	private static final String KValue = "Ljava/lang/Object;";
+	private static final String KMethod = "(" + KValue + "[" + KValue + ")" + KValue;
+	/* Class files older than version 50 need no stack map frames. */
+	private static final int KClassVersion = 49;
+	/* Branch offsets are signed 16 bit. */
+	private static final int KMaxCode = Short.MAX_VALUE;
+	/* Nodes per method, at most about 10 bytes of code each. */
+	private static final int KMethodNodes = 256;
+
+	private static final AtomicInteger sClasses = new AtomicInteger();
+	private static volatile int sThreshold = Integer.getInteger("interpreter.jit.threshold", 1000);
+	private static volatile boolean sForceInterpret = Boolean.getBoolean("interpreter.forceInterpret");
+
+	private static final IdentityHashMap<Operator, String> HELPERS = new IdentityHashMap<>();
+
+	static {
+		HELPERS.put(JitSupport.ADD, "add");
+		HELPERS.put(JitSupport.SUBTRACT, "subtract");
+		HELPERS.put(JitSupport.MULTIPLY, "multiply");
+		HELPERS.put(JitSupport.DIVIDE, "divide");
+		HELPERS.put(JitSupport.REMAINDER, "remainder");
+		HELPERS.put(JitSupport.LESS, "less");
+		HELPERS.put(JitSupport.LESS_EQUAL, "lessEqual");
+		HELPERS.put(JitSupport.GREATER, "greater");
+		HELPERS.put(JitSupport.GREATER_EQUAL, "greaterEqual");
+		HELPERS.put(JitSupport.NEGATE, "negate");
+		HELPERS.put(JitSupport.NOT, "not");
+	}
+
+	static int getThreshold() {
+		return sThreshold;
+	}
+
+	/**
+	 * Scripts are compiled on the run that reaches the threshold; 0 compiles
+	 * them before their first run.
+	 */
+	static void setThreshold(int threshold) {
+		sThreshold = threshold;
+	}
+
+	static boolean isForceInterpret() {
+		return sForceInterpret;
+	}
+
+	static void setForceInterpret(boolean forceInterpret) {
+		sForceInterpret = forceInterpret;
+	}
+
+	/**
+	 * A script compiled to a class, with the values and operators its code
+	 * loads.
+	 */
+	static class Compiled {
+		private final JitScript mCode;
+		private final Object[] mConstants;
+
+		private Compiled(JitScript code, Object[] constants) {
+			this.mCode = code;
+			this.mConstants = constants;
+		}
+
+		GenericVar run(ExecutionContext context) throws InterpreterException {
+			try {
+				return (GenericVar) mCode.run(context, mConstants);
+			} catch (InterpreterException | RuntimeException err) {
+				throw err;
+			} catch (Exception err) {
+				throw new Error(err);
+			}
+		}
+	}
+
+	/**
+	 * Returns the compiled statements, or null if they cannot be compiled, in
+	 * which case the script keeps running interpreted.
+	 */
+	static Compiled compile(Node[] statements) {
+		JitCompiler compiler = new JitCompiler("JitCode" + sClasses.incrementAndGet());
+		try {
+			compiler.pack(statements);
+			compiler.methods(statements);
+			for (Method method : compiler.mMethods) {
+				if (method.length > KMaxCode) {
+					return null;
+				}
+			}
+			Class<?> type = new Loader().define(compiler.mName, compiler.toClass());
+			JitScript code = (JitScript) type.getConstructor().newInstance();
+			return new Compiled(code, compiler.mConstants.toArray());
+		} catch (StackOverflowError err) {
+			/* Nested too deeply to compile; the interpreter reports it when run. */
+			return null;
+		} catch (IOException | ReflectiveOperationException err) {
+			throw new Error(err);
+		}
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader() {
+			super(JitCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * A static method of the class, taking the context and the constants as
+	 * its first two locals.
+	 */
+	private static class Method {
+		private byte[] code = new byte[256];
+		private int length = 0;
+		private int stack = 0;
+		private int maxStack = 0;
+		private int locals = 2;
+		private int maxLocals = 2;
+	}
+
+	private final String mName;
+
+	private final ByteArrayOutputStream mPoolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream mPool = new DataOutputStream(mPoolBytes);
+	private final HashMap<String, Integer> mPoolEntries = new HashMap<>();
+	private int mPoolCount = 1;
+
+	private final ArrayList<Object> mConstants = new ArrayList<>();
+	private final IdentityHashMap<Object, Integer> mConstantIndices = new IdentityHashMap<>();
+
+	/* Nodes compiled into a method of their own, and that method once called. */
+	private final IdentityHashMap<Node, Integer> mSplit = new IdentityHashMap<>();
+	private final ArrayList<Node> mPending = new ArrayList<>();
+	private final ArrayList<Method> mMethods = new ArrayList<>();
+	private Method mMethod;
+
+	private JitCompiler(String name) {
+		this.mName = name;
+	}
+
+	/* Splitting */
+
+	/**
+	 * Decides which nodes get a method of their own, bottom up: when a node
+	 * and what is left of its children would go over KMethodNodes, its
+	 * largest children are split off. Returns the nodes left in the method.
+	 */
+	private int pack(Node[] children) {
+		int[] sizes = new int[children.length];
+		for (int i = 0; i != children.length; i++) {
+			sizes[i] = size(children[i]);
+		}
+		return pack(children, sizes);
+	}
+
+	/* As pack, for children whose sizes are known. */
+	private int pack(Node[] children, int[] sizes) {
+		int total = 1;
+		for (int size : sizes) {
+			total += size;
+		}
+		while (total > KMethodNodes) {
+			int largest = -1;
+			for (int i = 0; i != children.length; i++) {
+				if (sizes[i] > 1 && (largest == -1 || sizes[i] > sizes[largest])) {
+					largest = i;
+				}
+			}
+			if (largest == -1) {
+				break;
+			}
+			mSplit.put(children[largest], -1);
+			total -= sizes[largest] - 1;
+			sizes[largest] = 1;
+		}
+		return total;
+	}
+
+	/**
+	 * Packs the node's children and returns the nodes left in its method.
+	 * Goes down the left operands in a loop, a chain of them being as deep
+	 * as it is long.
+	 */
+	private int size(Node node) {
+		if (!(node instanceof UnaryNode || node instanceof BinaryNode)) {
+			return pack(children(node));
+		}
+		Node[] spine = Node.spine(node);
+		int size = size(Node.left(spine[spine.length - 1]));
+		for (int i = spine.length - 1; i >= 0; i--) {
+			Node[] children = children(spine[i]);
+			int[] sizes = new int[children.length];
+			sizes[0] = size;
+			for (int j = 1; j != children.length; j++) {
+				sizes[j] = size(children[j]);
+			}
+			size = pack(children, sizes);
+		}
+		return size;
+	}
+
+	/**
+	 * The nodes the code of the node compiles in turn; the left operand of
+	 * unary and binary nodes comes first.
+	 */
+	private static Node[] children(Node node) {
+		if (node instanceof WrapperNode) {
+			return ((WrapperNode) node).getStatements();
+		}
+		if (node instanceof UnaryNode) {
+			return new Node[] {((UnaryNode) node).getOperand()};
+		}
+		if (node instanceof BinaryNode) {
+			BinaryNode binary = (BinaryNode) node;
+			BinaryNode arms = arms(binary);
+			if (arms != null) {
+				return new Node[] {binary.getBefore(), arms.getBefore(), arms.getAfter()};
+			}
+			if (binary.getOperator().evaluatesLazily() && binary.getOperator() != JitSupport.AND && binary.getOperator() != JitSupport.OR) {
+				return new Node[] {binary.getBefore()};
+			}
+			return new Node[] {binary.getBefore(), binary.getAfter()};
+		}
+		if (node instanceof CommonScope) {
+			return new Node[] {((CommonScope) node).getExpression()};
+		}
+		if (node instanceof CommonNode) {
+			return new Node[] {((CommonNode) node).getExpression()};
+		}
+		return new Node[0];
+	}
+
+	/** The arms of a default ternary whose : pair is never built, or null. */
+	private static BinaryNode arms(BinaryNode node) {
+		if (node.getOperator() == JitSupport.TERNARY && node.getAfter() instanceof BinaryNode && ((BinaryNode) node.getAfter()).getOperator().getSymbol().equals(":")) {
+			return (BinaryNode) node.getAfter();
+		}
+		return null;
+	}
+
+	/**
+	 * Emits the method for the statements, then one after the other those for
+	 * the nodes split off as their calls are emitted: method i is named
+	 * "m" + i. A long chain is split many times over, so the methods are not
+	 * emitted nested in one another.
+	 */
+	private void methods(Node[] statements) {
+		mMethods.add(null);
+		method(0, null, statements);
+		for (int i = 0; i != mPending.size(); i++) {
+			Node node = mPending.get(i);
+			method(mSplit.get(node), node, null);
+		}
+	}
+
+	private void method(int index, Node node, Node[] statements) {
+		mMethod = new Method();
+		mMethods.set(index, mMethod);
+		if (node == null) {
+			statements(statements);
+		} else {
+			emit(node);
+		}
+		op(0xb0); // areturn
+	}
+
+	/* Nodes */
+
+	/** Leaves the value of the last statement, or undefined, on the stack. */
+	private void statements(Node[] statements) {
+		if (statements.length == 0) {
+			call("undefined", "()" + KValue);
+		}
+		for (int i = 0; i != statements.length; i++) {
+			node(statements[i]);
+			if (i != statements.length - 1) {
+				op(0x57); // pop
+				mMethod.stack--;
+			}
+		}
+	}
+
+	private void node(Node node) {
+		Integer index = mSplit.get(node);
+		if (index == null) {
+			emit(node);
+			return;
+		}
+		if (index == -1) {
+			index = mMethods.size();
+			mMethods.add(null);
+			mSplit.put(node, index);
+			mPending.add(node);
+		}
+		load(0x2a); // aload_0
+		load(0x2b); // aload_1
+		invoke(mName, "m" + index, KMethod);
+	}
+
+	private void emit(Node node) {
+		if (node instanceof ValueNode) {
+			constant(((ValueNode) node).getValue());
+		} else if (node instanceof VariableNode) {
+			load(0x2a); // aload_0
+			push(((VariableNode) node).getSymbol());
+			call("get", "(" + KValue + "I)" + KValue);
+		} else if (node instanceof WrapperNode) {
+			WrapperNode wrapper = (WrapperNode) node;
+			constant(wrapper.getWrapper());
+			statements(wrapper.getStatements());
+			call("wrap", descriptor(2));
+		} else if (node instanceof UnaryNode || node instanceof BinaryNode) {
+			/* Down the left operands in a loop, to the first node split off. */
+			ArrayList<Node> spine = new ArrayList<>();
+			Node left = node;
+			do {
+				spine.add(left);
+				left = Node.left(left);
+			} while ((left instanceof UnaryNode || left instanceof BinaryNode) && !mSplit.containsKey(left));
+			node(left);
+			for (int i = spine.size() - 1; i >= 0; i--) {
+				if (spine.get(i) instanceof UnaryNode) {
+					unary((UnaryNode) spine.get(i));
+				} else {
+					binary((BinaryNode) spine.get(i));
+				}
+			}
+		} else if (node instanceof CommonScope) {
+			CommonScope scope = (CommonScope) node;
+			int outer = mMethod.locals++;
+			mMethod.maxLocals = Math.max(mMethod.maxLocals, mMethod.locals);
+			load(0x2a); // aload_0
+			push(scope.getSlots());
+			call("enterCommon", "(" + KValue + "I)" + KValue);
+			op(0x3a); // astore
+			op(outer);
+			mMethod.stack--;
+			node(scope.getExpression());
+			load(0x2a); // aload_0
+			op(0x19); // aload
+			op(outer);
+			grow();
+			call("leaveCommon", "(" + KValue + KValue + ")V");
+			mMethod.locals--;
+		} else if (node instanceof CommonNode) {
+			CommonNode common = (CommonNode) node;
+			load(0x2a); // aload_0
+			push(common.getSlot());
+			call("common", "(" + KValue + "I)" + KValue);
+			op(0x59); // dup
+			grow();
+			int computed = jump(0xc7); // ifnonnull
+			op(0x57); // pop
+			mMethod.stack--;
+			node(common.getExpression());
+			load(0x2a); // aload_0
+			push(common.getSlot());
+			call("share", "(" + KValue + KValue + "I)" + KValue);
+			land(computed);
+		} else {
+			constant(node);
+			load(0x2a); // aload_0
+			call("evaluate", descriptor(2));
+		}
+	}
+
+	/*
+	 * The operand is on the stack already, and so is the left one of binary
+	 * nodes; the constants helpers take first are slipped under it.
+	 */
+	private void unary(UnaryNode node) {
+		Operator operator = node.getOperator();
+		String helper = HELPERS.get(operator);
+		if (operator.assigns()) {
+			under(operator);
+			under(node.getOperand());
+			load(0x2a); // aload_0
+			call("assign", descriptor(4));
+		} else if (helper != null) {
+			call(helper, descriptor(1));
+		} else {
+			under(operator);
+			call("unary", descriptor(2));
+		}
+	}
+
+	private void binary(BinaryNode node) {
+		Operator operator = node.getOperator();
+		String helper = HELPERS.get(operator);
+		BinaryNode arms = arms(node);
+		if (operator == JitSupport.AND || operator == JitSupport.OR) {
+			/* Jumps to the end as soon as one side decides the result. */
+			int decided = operator == JitSupport.AND ? 0x99 : 0x9a; // ifeq, ifne
+			truthy(operator);
+			int first = jump(decided);
+			node(node.getAfter());
+			truthy(operator);
+			int second = jump(decided);
+			push(operator == JitSupport.AND ? 1 : 0);
+			int done = jump(0xa7); // goto
+			mMethod.stack--;
+			land(first);
+			land(second);
+			push(operator == JitSupport.AND ? 0 : 1);
+			land(done);
+			call("bool", "(Z)" + KValue);
+		} else if (arms != null) {
+			truthy(operator);
+			int otherwise = jump(0x99); // ifeq
+			constant(arms.getOperator());
+			node(arms.getBefore());
+			call("check", descriptor(2));
+			int done = jump(0xa7); // goto
+			mMethod.stack--;
+			land(otherwise);
+			constant(arms.getOperator());
+			node(arms.getAfter());
+			call("check", descriptor(2));
+			land(done);
+		} else if (operator.evaluatesLazily()) {
+			under(node);
+			load(0x2a); // aload_0
+			call("lazy", descriptor(3));
+		} else if (operator.assigns()) {
+			under(operator);
+			under(node.getBefore());
+			node(node.getAfter());
+			load(0x2a); // aload_0
+			call("assign", descriptor(5));
+		} else if (helper != null) {
+			node(node.getAfter());
+			call(helper, descriptor(2));
+		} else {
+			under(node);
+			node(node.getAfter());
+			call("reduce", descriptor(3));
+		}
+	}
+
+	/* Tests the value on the stack. */
+	private void truthy(Operator operator) {
+		under(operator);
+		call("truthy", "(" + KValue + KValue + ")Z");
+	}
+
+	/* Loads the constant below the value on top of the stack. */
+	private void under(Object value) {
+		constant(value);
+		op(0x5f); // swap
+	}
+
+	/* Instructions */
+
+	private void op(int code) {
+		Method method = mMethod;
+		if (method.length == method.code.length) {
+			method.code = Arrays.copyOf(method.code, method.length * 2);
+		}
+		method.code[method.length++] = (byte) code;
+	}
+
+	private void op16(int value) {
+		op(value >> 8);
+		op(value);
+	}
+
+	private void grow() {
+		mMethod.stack++;
+		mMethod.maxStack = Math.max(mMethod.maxStack, mMethod.stack);
+	}
+
+	private void load(int code) {
+		op(code);
+		grow();
+	}
+
+	private void constant(Object value) {
+		Integer index = mConstantIndices.get(value);
+		if (index == null) {
+			index = mConstants.size();
+			mConstants.add(value);
+			mConstantIndices.put(value, index);
+		}
+		load(0x2b); // aload_1
+		push(index);
+		op(0x32); // aaload
+		mMethod.stack--;
+	}
+
+	private void push(int value) {
+		if (value >= -1 && value <= 5) {
+			op(0x03 + value); // iconst
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op(0x10); // bipush
+			op(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(0x11); // sipush
+			op16(value);
+		} else {
+			op(0x13); // ldc_w
+			op16(integer(value));
+		}
+		grow();
+	}
+
+	private void call(String name, String descriptor) {
+		invoke(KSupport, name, descriptor);
+	}
+
+	private void invoke(String owner, String name, String descriptor) {
+		op(0xb8); // invokestatic
+		op16(method(owner, name, descriptor));
+		int arguments = 0;
+		for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+			while (descriptor.charAt(i) == '[') {
+				i++;
+			}
+			if (descriptor.charAt(i) == 'L') {
+				i = descriptor.indexOf(';', i);
+			}
+			arguments++;
+		}
+		mMethod.stack -= arguments;
+		if (!descriptor.endsWith("V")) {
+			grow();
+		}
+	}
+
+	private static String descriptor(int arguments) {
+		StringBuilder str = new StringBuilder("(");
+		for (int i = 0; i != arguments; i++) {
+			str.append(KValue);
+		}
+		return str.append(')').append(KValue).toString();
+	}
+
+	/**
+	 * Emits a forward branch and returns where it is, for land to point it at
+	 * the next instruction. Conditional branches pop their operand.
+	 */
+	private int jump(int code) {
+		int at = mMethod.length;
+		op(code);
+		op16(0);
+		if (code != 0xa7) {
+			mMethod.stack--;
+		}
+		return at;
+	}
+
+	private void land(int jump) {
+		int offset = mMethod.length - jump;
+		mMethod.code[jump + 1] = (byte) (offset >> 8);
+		mMethod.code[jump + 2] = (byte) offset;
+	}
+
+	/* Class file */
+
+	private int entry(String key, int tag, String utf8, int first, int second) throws IOException {
+		Integer index = mPoolEntries.get(key);
+		if (index != null) {
+			return index;
+		}
+		mPool.writeByte(tag);
+		if (utf8 != null) {
+			mPool.writeUTF(utf8);
+		} else if (tag == 3) {
+			mPool.writeInt(first);
+		} else {
+			mPool.writeShort(first);
+			if (second >= 0) {
+				mPool.writeShort(second);
+			}
+		}
+		mPoolEntries.put(key, mPoolCount);
+		return mPoolCount++;
+	}
+
+	private int utf8(String value) throws IOException {
+		return entry("U" + value, 1, value, 0, -1);
+	}
+
+	private int integer(int value) {
+		try {
+			return entry("I" + value, 3, null, value, -1);
+		} catch (IOException err) {
+			throw new Error(err);
+		}
+	}
+
+	private int type(String name) throws IOException {
+		return entry("C" + name, 7, null, utf8(name), -1);
+	}
+
+	private int method(String owner, String name, String descriptor) {
+		try {
+			int nameAndType = entry("N" + name + descriptor, 12, null, utf8(name), utf8(descriptor));
+			return entry("M" + owner + "." + name + descriptor, 10, null, type(owner), nameAndType);
+		} catch (IOException err) {
+			throw new Error(err);
+		}
+	}
+
+	private static void code(DataOutputStream out, int name, int maxStack, int maxLocals, byte[] code, int length) throws IOException {
+		out.writeShort(1);
+		out.writeShort(name);
+		out.writeInt(12 + length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(length);
+		out.write(code, 0, length);
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+
+	private byte[] toClass() throws IOException {
+		int thisType = type(mName);
+		int superType = type("java/lang/Object");
+		int script = type("JitScript");
+		int init = utf8("<init>");
+		int initDescriptor = utf8("()V");
+		int superInit = method("java/lang/Object", "<init>", "()V");
+		int run = utf8("run");
+		int runDescriptor = utf8(KMethod);
+		int first = method(mName, "m0", KMethod);
+		int[] names = new int[mMethods.size()];
+		for (int i = 0; i != names.length; i++) {
+			names[i] = utf8("m" + i);
+		}
+		int code = utf8("Code");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xcafebabe);
+		out.writeShort(0);
+		out.writeShort(KClassVersion);
+		out.writeShort(mPoolCount);
+		out.write(mPoolBytes.toByteArray());
+		out.writeShort(0x31); // public final super
+		out.writeShort(thisType);
+		out.writeShort(superType);
+		out.writeShort(1);
+		out.writeShort(script);
+		out.writeShort(0);
+		out.writeShort(2 + mMethods.size());
+
+		out.writeShort(0x01); // public
+		out.writeShort(init);
+		out.writeShort(initDescriptor);
+		code(out, code, 1, 1, new byte[] {
+			0x2a, // aload_0
+			(byte) 0xb7, (byte) (superInit >> 8), (byte) superInit, // invokespecial
+			(byte) 0xb1 // return
+		}, 5);
+
+		out.writeShort(0x01); // public
+		out.writeShort(run);
+		out.writeShort(runDescriptor);
+		code(out, code, 2, 3, new byte[] {
+			0x2b, // aload_1
+			0x2c, // aload_2
+			(byte) 0xb8, (byte) (first >> 8), (byte) first, // invokestatic
+			(byte) 0xb0 // areturn
+		}, 6);
+
+		for (int i = 0; i != names.length; i++) {
+			Method method = mMethods.get(i);
+			out.writeShort(0x0a); // private static
+			out.writeShort(names[i]);
+			out.writeShort(runDescriptor);
+			code(out, code, method.maxStack, method.maxLocals, method.code, method.length);
+		}
+
+		out.writeShort(0);
+		return bytes.toByteArray();
+	}
+}
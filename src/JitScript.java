@@ -0,0 +1,10 @@
+/**
+ * Statements of a script compiled to a class of its own by JitCompiler. The
+ * class is defined by its own class loader, so it sits in another runtime
+ * package and can only reach what is public; context is the
+ * ExecutionContext, constants the values and operators the code loads.
+ */
+
+public interface JitScript {
+	Object run(Object context, Object[] constants) throws Exception;
+}
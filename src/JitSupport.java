@@ -0,0 +1,250 @@
+/**
+ * Helpers the code generated by JitCompiler calls, one per kind of node. They
+ * are typed on Object because the generated classes cannot name the package
+ * private classes of the interpreter.
+ *
+ * The arithmetic and comparison helpers are specialized for the default
+ * operators: two numbers are computed in place, anything else goes through
+ * the operator like the interpreter does.
+ */
+
+public final class JitSupport {
+	static final Operator ADD = find("+", OperatorType.between);
+	static final Operator SUBTRACT = find("-", OperatorType.between);
+	static final Operator MULTIPLY = find("*", OperatorType.between);
+	static final Operator DIVIDE = find("/", OperatorType.between);
+	static final Operator REMAINDER = find("%", OperatorType.between);
+	static final Operator LESS = find("<", OperatorType.between);
+	static final Operator LESS_EQUAL = find("<=", OperatorType.between);
+	static final Operator GREATER = find(">", OperatorType.between);
+	static final Operator GREATER_EQUAL = find(">=", OperatorType.between);
+	static final Operator NEGATE = find("-", OperatorType.before);
+	static final Operator NOT = find("!", OperatorType.before);
+	static final Operator AND = find("&&", OperatorType.between);
+	static final Operator OR = find("||", OperatorType.between);
+	static final Operator TERNARY = find("?", OperatorType.between);
+
+	private JitSupport() {
+	}
+
+	private static Operator find(String symbol, OperatorType type) {
+		for (Operator operator : CustomOperators.DEFAULT.get(symbol, 0)) {
+			if (operator.getSymbol().equals(symbol) && operator.getOperatorType() == type) {
+				return operator;
+			}
+		}
+		throw new Error("Default operator " + symbol + " is missing");
+	}
+
+	private static GenericVar checked(Operator operator, GenericVar value) throws InterpreterException {
+		if (value.getType() == Type.tuple && !operator.supportsTuple()) {
+			throw new InterpreterException("Unexpected colon");
+		}
+		if (value.getType() == Type.sequence && !operator.supportsSequence()) {
+			throw new InterpreterException("Unexpected sequence of values");
+		}
+		return value;
+	}
+
+	private static void checked(Operator operator, GenericVar before, GenericVar after) throws InterpreterException {
+		if ((before.getType() == Type.tuple || after.getType() == Type.tuple) && !operator.supportsTuple()) {
+			throw new InterpreterException("Unexpected colon");
+		}
+		if ((before.getType() == Type.sequence || after.getType() == Type.sequence) && !operator.supportsSequence()) {
+			throw new InterpreterException("Unexpected sequence of values");
+		}
+	}
+
+	private static boolean numbers(GenericVar before, GenericVar after) {
+		return before.getType() == Type.number && after.getType() == Type.number
+			&& !Double.isNaN(before.getNumber()) && !Double.isNaN(after.getNumber());
+	}
+
+	/* Values and variables */
+
+	public static Object undefined() {
+		return GenericVar.UNDEFINED;
+	}
+
+	public static Object bool(boolean value) {
+		return GenericVar.of(value);
+	}
+
+	public static Object get(Object context, int symbol) {
+		return ((ExecutionContext) context).get(symbol);
+	}
+
+	/** Nodes the compiler has no code for run interpreted. */
+	public static Object evaluate(Object node, Object context) throws InterpreterException {
+		return ((Node) node).evaluate((ExecutionContext) context);
+	}
+
+	/** Lazy operators other than the default ones run on the node. */
+	public static Object lazy(Object node, Object before, Object context) throws InterpreterException {
+		return ((BinaryNode) node).evaluate((ExecutionContext) context, (GenericVar) before);
+	}
+
+	/* Generic operators */
+
+	public static Object check(Object operator, Object value) throws InterpreterException {
+		return checked((Operator) operator, (GenericVar) value);
+	}
+
+	public static boolean truthy(Object operator, Object value) throws InterpreterException {
+		return LogicalOperator.toBoolean(checked((Operator) operator, (GenericVar) value));
+	}
+
+	public static Object unary(Object operator, Object value) throws InterpreterException {
+		Operator op = (Operator) operator;
+		return op.compute(checked(op, (GenericVar) value));
+	}
+
+	public static Object binary(Object operator, Object before, Object after) throws InterpreterException {
+		Operator op = (Operator) operator;
+		checked(op, (GenericVar) before, (GenericVar) after);
+		return op.compute((GenericVar) before, (GenericVar) after);
+	}
+
+	/** Applies the operator of a binary node through the node's type feedback. */
+	public static Object reduce(Object node, Object before, Object after) throws InterpreterException {
+		BinaryNode site = (BinaryNode) node;
+		checked(site.getOperator(), (GenericVar) before, (GenericVar) after);
+		return site.reduce((GenericVar) before, (GenericVar) after);
+	}
+
+	public static Object assign(Object operator, Object target, Object current, Object context) throws InterpreterException {
+		Operator op = (Operator) operator;
+		return op.assign((ExecutionContext) context, (VariableNode) target, checked(op, (GenericVar) current));
+	}
+
+	public static Object assign(Object operator, Object target, Object current, Object value, Object context) throws InterpreterException {
+		Operator op = (Operator) operator;
+		checked(op, (GenericVar) current, (GenericVar) value);
+		return op.assign((ExecutionContext) context, (VariableNode) target, (GenericVar) current, (GenericVar) value);
+	}
+
+	public static Object wrap(Object wrapper, Object content) throws InterpreterException {
+		return ((Operator) wrapper).compute((GenericVar) content);
+	}
+
+	/* Common subexpressions */
+
+	public static Object enterCommon(Object context, int slots) {
+		ExecutionContext ctx = (ExecutionContext) context;
+		GenericVar[] outer = ctx.getCommon();
+		ctx.setCommon(new GenericVar[slots]);
+		return outer;
+	}
+
+	public static void leaveCommon(Object context, Object outer) {
+		((ExecutionContext) context).setCommon((GenericVar[]) outer);
+	}
+
+	public static Object common(Object context, int slot) {
+		return ((ExecutionContext) context).getCommon()[slot];
+	}
+
+	public static Object share(Object value, Object context, int slot) {
+		((ExecutionContext) context).getCommon()[slot] = (GenericVar) value;
+		return value;
+	}
+
+	/* Default arithmetic and comparisons */
+
+	public static Object add(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() + value2.getNumber());
+		}
+		return binary(ADD, before, after);
+	}
+
+	public static Object subtract(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() - value2.getNumber());
+		}
+		return binary(SUBTRACT, before, after);
+	}
+
+	public static Object multiply(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() * value2.getNumber());
+		}
+		return binary(MULTIPLY, before, after);
+	}
+
+	public static Object divide(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() / value2.getNumber());
+		}
+		return binary(DIVIDE, before, after);
+	}
+
+	public static Object remainder(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() % value2.getNumber());
+		}
+		return binary(REMAINDER, before, after);
+	}
+
+	public static Object less(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() < value2.getNumber());
+		}
+		return binary(LESS, before, after);
+	}
+
+	public static Object lessEqual(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() <= value2.getNumber());
+		}
+		return binary(LESS_EQUAL, before, after);
+	}
+
+	public static Object greater(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() > value2.getNumber());
+		}
+		return binary(GREATER, before, after);
+	}
+
+	public static Object greaterEqual(Object before, Object after) throws InterpreterException {
+		GenericVar value1 = (GenericVar) before;
+		GenericVar value2 = (GenericVar) after;
+		if (numbers(value1, value2)) {
+			return GenericVar.of(value1.getNumber() >= value2.getNumber());
+		}
+		return binary(GREATER_EQUAL, before, after);
+	}
+
+	public static Object negate(Object value) throws InterpreterException {
+		GenericVar var = (GenericVar) value;
+		if (var.getType() == Type.number) {
+			return GenericVar.of(-var.getNumber());
+		}
+		return unary(NEGATE, value);
+	}
+
+	public static Object not(Object value) throws InterpreterException {
+		GenericVar var = (GenericVar) value;
+		if (var.getType() == Type.bool) {
+			return GenericVar.of(!var.getBoolean());
+		}
+		return unary(NOT, value);
+	}
+}
@@ -0,0 +1,461 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * The statements of a script lowered into a flat int[] of opcodes and their
+ * operands, with a pool of the constants they refer to, for the opcodes
+ * engine. run executes them in one switch loop over a stack of values, the
+ * interpreter's node tree having been left behind at lowering time.
+ *
+ * Operands are constant pool indices, slots and absolute code positions.
+ * The default arithmetic and comparison operators have opcodes of their own
+ * and share the JitSupport helpers with compiled code; every other binary
+ * operator is applied through its node, keeping the site's type feedback,
+ * and unary ones through their constant. Nodes the lowering does not know are run
+ * interpreted through EVALUATE, and lazy operators other than the default
+ * ones through LAZY once their left operand is on the stack.
+ */
+
+class OpcodeProgram {
+	static final int CONST = 0;          // k: push constant k
+	static final int LOAD = 1;           // s: push the variable in slot s
+	static final int POP = 2;
+	static final int UNDEFINED = 3;
+	static final int TRUE = 4;
+	static final int FALSE = 5;
+	static final int ADD = 6;
+	static final int SUBTRACT = 7;
+	static final int MULTIPLY = 8;
+	static final int DIVIDE = 9;
+	static final int REMAINDER = 10;
+	static final int LESS = 11;
+	static final int LESS_EQUAL = 12;
+	static final int GREATER = 13;
+	static final int GREATER_EQUAL = 14;
+	static final int NEGATE = 15;
+	static final int NOT = 16;
+	static final int UNARY = 17;         // k: apply operator k to the top
+	static final int BINARY = 18;        // k: reduce the top two at binary node k
+	static final int ASSIGN_UNARY = 19;  // k, t: operator k on variable node t
+	static final int ASSIGN_BINARY = 20; // k, t
+	static final int WRAP = 21;          // k: apply wrapper k to the top
+	static final int CHECK = 22;         // k: check the top is an operand of k
+	static final int JUMP = 23;          // target
+	static final int JUMP_FALSE = 24;    // k, target: pop an operand of k, jump if falsy
+	static final int JUMP_TRUE = 25;     // k, target
+	static final int EVALUATE = 26;      // k: evaluate node k interpreted
+	static final int COMMON_ENTER = 27;  // n: start a scope of n common values
+	static final int COMMON_LEAVE = 28;
+	static final int COMMON_GET = 29;    // slot, target: push and jump if computed
+	static final int COMMON_PUT = 30;    // slot: keep the top
+	static final int RETURN = 31;
+	static final int LAZY = 32;          // k: finish lazy node k on its left operand on top
+
+	private final int[] mCode;
+	private final Object[] mConstants;
+	private final int mMaxStack;
+	private final int mMaxScopes;
+
+	private OpcodeProgram(int[] code, Object[] constants, int maxStack, int maxScopes) {
+		this.mCode = code;
+		this.mConstants = constants;
+		this.mMaxStack = maxStack;
+		this.mMaxScopes = maxScopes;
+	}
+
+	/**
+	 * Returns the lowered statements, or null if they are nested too deeply to
+	 * lower, in which case the script keeps running on the tree.
+	 */
+	static OpcodeProgram lower(Node[] statements) {
+		Lowering lowering = new Lowering();
+		try {
+			lowering.statements(statements);
+		} catch (StackOverflowError err) {
+			return null;
+		}
+		lowering.op(RETURN);
+		return new OpcodeProgram(Arrays.copyOf(lowering.code, lowering.length), lowering.constants.toArray(), lowering.maxStack, lowering.maxScopes);
+	}
+
+	int size() {
+		return mCode.length;
+	}
+
+	GenericVar run(ExecutionContext context) throws InterpreterException {
+		final int[] code = mCode;
+		final Object[] constants = mConstants;
+		GenericVar[] stack = new GenericVar[mMaxStack];
+		GenericVar[][] scopes = mMaxScopes == 0 ? null : new GenericVar[mMaxScopes][];
+		int top = -1;
+		int scope = 0;
+		int pc = 0;
+		while (true) {
+			switch (code[pc++]) {
+				case CONST: {
+					stack[++top] = (GenericVar) constants[code[pc++]];
+					break;
+				}
+				case LOAD: {
+					stack[++top] = context.get(code[pc++]);
+					break;
+				}
+				case POP: {
+					top--;
+					break;
+				}
+				case UNDEFINED: {
+					stack[++top] = GenericVar.UNDEFINED;
+					break;
+				}
+				case TRUE: {
+					stack[++top] = GenericVar.TRUE;
+					break;
+				}
+				case FALSE: {
+					stack[++top] = GenericVar.FALSE;
+					break;
+				}
+				case ADD: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.add(stack[top], stack[top + 1]);
+					break;
+				}
+				case SUBTRACT: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.subtract(stack[top], stack[top + 1]);
+					break;
+				}
+				case MULTIPLY: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.multiply(stack[top], stack[top + 1]);
+					break;
+				}
+				case DIVIDE: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.divide(stack[top], stack[top + 1]);
+					break;
+				}
+				case REMAINDER: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.remainder(stack[top], stack[top + 1]);
+					break;
+				}
+				case LESS: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.less(stack[top], stack[top + 1]);
+					break;
+				}
+				case LESS_EQUAL: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.lessEqual(stack[top], stack[top + 1]);
+					break;
+				}
+				case GREATER: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.greater(stack[top], stack[top + 1]);
+					break;
+				}
+				case GREATER_EQUAL: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.greaterEqual(stack[top], stack[top + 1]);
+					break;
+				}
+				case NEGATE: {
+					stack[top] = (GenericVar) JitSupport.negate(stack[top]);
+					break;
+				}
+				case NOT: {
+					stack[top] = (GenericVar) JitSupport.not(stack[top]);
+					break;
+				}
+				case UNARY: {
+					stack[top] = (GenericVar) JitSupport.unary(constants[code[pc++]], stack[top]);
+					break;
+				}
+				case BINARY: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.reduce(constants[code[pc++]], stack[top], stack[top + 1]);
+					break;
+				}
+				case ASSIGN_UNARY: {
+					stack[top] = (GenericVar) JitSupport.assign(constants[code[pc]], constants[code[pc + 1]], stack[top], context);
+					pc += 2;
+					break;
+				}
+				case ASSIGN_BINARY: {
+					top--;
+					stack[top] = (GenericVar) JitSupport.assign(constants[code[pc]], constants[code[pc + 1]], stack[top], stack[top + 1], context);
+					pc += 2;
+					break;
+				}
+				case WRAP: {
+					stack[top] = ((Operator) constants[code[pc++]]).compute(stack[top]);
+					break;
+				}
+				case CHECK: {
+					JitSupport.check(constants[code[pc++]], stack[top]);
+					break;
+				}
+				case JUMP: {
+					pc = code[pc];
+					break;
+				}
+				case JUMP_FALSE: {
+					pc = JitSupport.truthy(constants[code[pc]], stack[top--]) ? pc + 2 : code[pc + 1];
+					break;
+				}
+				case JUMP_TRUE: {
+					pc = JitSupport.truthy(constants[code[pc]], stack[top--]) ? code[pc + 1] : pc + 2;
+					break;
+				}
+				case EVALUATE: {
+					stack[++top] = ((Node) constants[code[pc++]]).evaluate(context);
+					break;
+				}
+				case COMMON_ENTER: {
+					scopes[scope++] = context.getCommon();
+					context.setCommon(new GenericVar[code[pc++]]);
+					break;
+				}
+				case COMMON_LEAVE: {
+					context.setCommon(scopes[--scope]);
+					break;
+				}
+				case COMMON_GET: {
+					GenericVar value = context.getCommon()[code[pc]];
+					if (value == null) {
+						pc += 2;
+					} else {
+						stack[++top] = value;
+						pc = code[pc + 1];
+					}
+					break;
+				}
+				case COMMON_PUT: {
+					context.getCommon()[code[pc++]] = stack[top];
+					break;
+				}
+				case RETURN: {
+					return stack[top];
+				}
+				case LAZY: {
+					stack[top] = ((BinaryNode) constants[code[pc++]]).evaluate(context, stack[top]);
+					break;
+				}
+				default: {
+					throw new Error("Unknown opcode " + code[pc - 1] + " at " + (pc - 1));
+				}
+			}
+		}
+	}
+
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (int pc = 0; pc < mCode.length; ) {
+			int opcode = mCode[pc];
+			str.append(pc).append(' ').append(NAMES[opcode]);
+			for (int i = 1; i <= OPERANDS[opcode]; i++) {
+				str.append(' ').append(mCode[pc + i]);
+			}
+			str.append('\n');
+			pc += 1 + OPERANDS[opcode];
+		}
+		return str.toString();
+	}
+
+	private static final String[] NAMES = {
+		"CONST", "LOAD", "POP", "UNDEFINED", "TRUE", "FALSE",
+		"ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "REMAINDER",
+		"LESS", "LESS_EQUAL", "GREATER", "GREATER_EQUAL", "NEGATE", "NOT",
+		"UNARY", "BINARY", "ASSIGN_UNARY", "ASSIGN_BINARY", "WRAP", "CHECK",
+		"JUMP", "JUMP_FALSE", "JUMP_TRUE", "EVALUATE",
+		"COMMON_ENTER", "COMMON_LEAVE", "COMMON_GET", "COMMON_PUT", "RETURN",
+		"LAZY"
+	};
+
+	private static final int[] OPERANDS = {
+		1, 1, 0, 0, 0, 0,
+		0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0,
+		1, 1, 2, 2, 1, 1,
+		1, 2, 2, 1,
+		1, 0, 2, 1, 0,
+		1
+	};
+
+	private static final IdentityHashMap<Operator, Integer> OPCODES = new IdentityHashMap<>();
+
+	static {
+		OPCODES.put(JitSupport.ADD, ADD);
+		OPCODES.put(JitSupport.SUBTRACT, SUBTRACT);
+		OPCODES.put(JitSupport.MULTIPLY, MULTIPLY);
+		OPCODES.put(JitSupport.DIVIDE, DIVIDE);
+		OPCODES.put(JitSupport.REMAINDER, REMAINDER);
+		OPCODES.put(JitSupport.LESS, LESS);
+		OPCODES.put(JitSupport.LESS_EQUAL, LESS_EQUAL);
+		OPCODES.put(JitSupport.GREATER, GREATER);
+		OPCODES.put(JitSupport.GREATER_EQUAL, GREATER_EQUAL);
+		OPCODES.put(JitSupport.NEGATE, NEGATE);
+		OPCODES.put(JitSupport.NOT, NOT);
+	}
+
+	/**
+	 * Emits the code of the nodes, keeping track of how deep the stack and
+	 * the common scopes get.
+	 */
+	private static class Lowering {
+		private int[] code = new int[64];
+		private int length = 0;
+		private final ArrayList<Object> constants = new ArrayList<>();
+		private final IdentityHashMap<Object, Integer> indices = new IdentityHashMap<>();
+		private int stack = 0;
+		private int maxStack = 0;
+		private int scopes = 0;
+		private int maxScopes = 0;
+
+		/** Leaves the value of the last statement, or undefined, on the stack. */
+		void statements(Node[] statements) {
+			if (statements.length == 0) {
+				op(UNDEFINED);
+				grow(1);
+			}
+			for (int i = 0; i != statements.length; i++) {
+				node(statements[i]);
+				if (i != statements.length - 1) {
+					op(POP);
+					grow(-1);
+				}
+			}
+		}
+
+		void node(Node node) {
+			if (node instanceof ValueNode) {
+				op(CONST, constant(((ValueNode) node).getValue()));
+				grow(1);
+			} else if (node instanceof VariableNode) {
+				op(LOAD, ((VariableNode) node).getSymbol());
+				grow(1);
+			} else if (node instanceof WrapperNode) {
+				WrapperNode wrapper = (WrapperNode) node;
+				statements(wrapper.getStatements());
+				op(WRAP, constant(wrapper.getWrapper()));
+			} else if (node instanceof UnaryNode || node instanceof BinaryNode) {
+				/* Down the left operands in a loop, a chain of them is as deep as it is long. */
+				Node[] spine = Node.spine(node);
+				node(Node.left(spine[spine.length - 1]));
+				for (int i = spine.length - 1; i >= 0; i--) {
+					if (spine[i] instanceof UnaryNode) {
+						unary((UnaryNode) spine[i]);
+					} else {
+						binary((BinaryNode) spine[i]);
+					}
+				}
+			} else if (node instanceof CommonScope) {
+				CommonScope common = (CommonScope) node;
+				op(COMMON_ENTER, common.getSlots());
+				maxScopes = Math.max(maxScopes, ++scopes);
+				node(common.getExpression());
+				op(COMMON_LEAVE);
+				scopes--;
+			} else if (node instanceof CommonNode) {
+				CommonNode common = (CommonNode) node;
+				op(COMMON_GET, common.getSlot(), 0);
+				int computed = length - 1;
+				node(common.getExpression());
+				op(COMMON_PUT, common.getSlot());
+				code[computed] = length;
+			} else {
+				op(EVALUATE, constant(node));
+				grow(1);
+			}
+		}
+
+		/* The operand is on the stack already, and so is the left one of binary nodes. */
+		private void unary(UnaryNode node) {
+			Operator operator = node.getOperator();
+			Integer opcode = OPCODES.get(operator);
+			if (operator.assigns()) {
+				op(ASSIGN_UNARY, constant(operator), constant(node.getOperand()));
+			} else if (opcode != null) {
+				op(opcode);
+			} else {
+				op(UNARY, constant(operator));
+			}
+		}
+
+		private void binary(BinaryNode node) {
+			Operator operator = node.getOperator();
+			Integer opcode = OPCODES.get(operator);
+			if (operator == JitSupport.AND || operator == JitSupport.OR) {
+				/* Jumps to the end as soon as one side decides the result. */
+				int decided = operator == JitSupport.AND ? JUMP_FALSE : JUMP_TRUE;
+				op(decided, constant(operator), 0);
+				grow(-1);
+				int first = length - 1;
+				node(node.getAfter());
+				op(decided, constant(operator), 0);
+				grow(-1);
+				int second = length - 1;
+				op(operator == JitSupport.AND ? TRUE : FALSE);
+				op(JUMP, 0);
+				int done = length - 1;
+				code[first] = length;
+				code[second] = length;
+				op(operator == JitSupport.AND ? FALSE : TRUE);
+				grow(1);
+				code[done] = length;
+			} else if (operator == JitSupport.TERNARY && node.getAfter() instanceof BinaryNode && ((BinaryNode) node.getAfter()).getOperator().getSymbol().equals(":")) {
+				BinaryNode arms = (BinaryNode) node.getAfter();
+				op(JUMP_FALSE, constant(operator), 0);
+				grow(-1);
+				int otherwise = length - 1;
+				node(arms.getBefore());
+				op(CHECK, constant(arms.getOperator()));
+				op(JUMP, 0);
+				int done = length - 1;
+				grow(-1);
+				code[otherwise] = length;
+				node(arms.getAfter());
+				op(CHECK, constant(arms.getOperator()));
+				code[done] = length;
+			} else if (operator.evaluatesLazily()) {
+				op(LAZY, constant(node));
+			} else {
+				node(node.getAfter());
+				grow(-1);
+				if (operator.assigns()) {
+					op(ASSIGN_BINARY, constant(operator), constant(node.getBefore()));
+				} else if (opcode != null) {
+					op(opcode);
+				} else {
+					op(BINARY, constant(node));
+				}
+			}
+		}
+
+		private int constant(Object value) {
+			Integer index = indices.get(value);
+			if (index == null) {
+				index = constants.size();
+				constants.add(value);
+				indices.put(value, index);
+			}
+			return index;
+		}
+
+		private void grow(int values) {
+			stack += values;
+			maxStack = Math.max(maxStack, stack);
+		}
+
+		void op(int... words) {
+			if (length + words.length > code.length) {
+				code = Arrays.copyOf(code, Math.max(code.length * 2, length + words.length));
+			}
+			System.arraycopy(words, 0, code, length, words.length);
+			length += words.length;
+		}
+	}
+}
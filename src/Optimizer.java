@@ -0,0 +1,395 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Rewrites compiled statements before they are executed, running three passes
+ * in order:
+ * - constant folding: pure operators whose operands are all literals are
+ *   computed once at compile time.
+ * - unused statements: pure statements other than the last one of a block
+ *   produce a value nobody reads, and stores of a pure value are overwritten
+ *   by a later one of the block before anything reads them, so both are
+ *   dropped.
+ * - common subexpressions: a pure expression computes each of its repeated
+ *   subexpressions once per evaluation.
+ *
+ * Variables cannot change during a pure expression, and the interpreter never
+ * stores a tuple or a sequence in a variable, so none of this changes what a
+ * script evaluates to.
+ *
+ * Left associative chains are as deep as they are long, so every pass goes
+ * down the left operands of unary and binary nodes in a loop.
+ */
+
+class Optimizer {
+	private Optimizer() {
+	}
+
+	static Node[] optimize(Node[] statements) {
+		statements = foldConstants(statements);
+		statements = dropUnused(statements);
+		return shareCommon(statements);
+	}
+
+	static boolean isPure(Node node) {
+		if (node instanceof ValueNode || node instanceof VariableNode) {
+			return true;
+		}
+		if (node instanceof WrapperNode) {
+			WrapperNode wrapper = (WrapperNode) node;
+			if (!wrapper.getWrapper().isPure()) {
+				return false;
+			}
+			for (Node statement : wrapper.getStatements()) {
+				if (!isPure(statement)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (node instanceof UnaryNode || node instanceof BinaryNode) {
+			Node[] spine = Node.spine(node);
+			for (Node link : spine) {
+				if (!isPureLink(link)) {
+					return false;
+				}
+			}
+			return isPure(Node.left(spine[spine.length - 1]));
+		}
+		return false;
+	}
+
+	/* Whether the operator node is pure, given that its left operand is. */
+	private static boolean isPureLink(Node link) {
+		if (link instanceof UnaryNode) {
+			return ((UnaryNode) link).getOperator().isPure();
+		}
+		BinaryNode binary = (BinaryNode) link;
+		return binary.getOperator().isPure() && isPure(binary.getAfter());
+	}
+
+	/* The operator node with its operands replaced; after is ignored for unary nodes. */
+	private static Node rebuild(Node link, Node left, Node after) {
+		if (link instanceof UnaryNode) {
+			return new UnaryNode(((UnaryNode) link).getOperator(), left);
+		}
+		return new BinaryNode(((BinaryNode) link).getOperator(), left, after);
+	}
+
+	private static boolean isComposite(GenericVar value) {
+		return value.getType() == Type.tuple || value.getType() == Type.sequence;
+	}
+
+	/* Constant folding */
+
+	static Node[] foldConstants(Node[] statements) {
+		Node[] folded = new Node[statements.length];
+		for (int i = 0; i != statements.length; i++) {
+			folded[i] = fold(statements[i]);
+		}
+		return folded;
+	}
+
+	private static Node fold(Node node) {
+		if (node instanceof UnaryNode || node instanceof BinaryNode) {
+			Node[] spine = Node.spine(node);
+			Node left = fold(Node.left(spine[spine.length - 1]));
+			for (int i = spine.length - 1; i >= 0; i--) {
+				left = fold(spine[i], left);
+			}
+			return left;
+		}
+		if (node instanceof WrapperNode) {
+			WrapperNode wrapper = (WrapperNode) node;
+			Node[] statements = foldConstants(wrapper.getStatements());
+			try {
+				if (wrapper.getWrapper().isPure() && allValues(statements)) {
+					GenericVar content = statements.length == 0 ? GenericVar.UNDEFINED : ((ValueNode) statements[statements.length - 1]).getValue();
+					return new ValueNode(wrapper.getWrapper().compute(content));
+				}
+			} catch (InterpreterException err) {
+				/* Left for execution, where the error is reported in order. */
+			}
+			return new WrapperNode(wrapper.getWrapper(), statements);
+		}
+		return node;
+	}
+
+	/* Folds the operator node whose left operand has been folded into left. */
+	private static Node fold(Node link, Node left) {
+		Node after = link instanceof BinaryNode ? fold(((BinaryNode) link).getAfter()) : null;
+		try {
+			if (link instanceof UnaryNode) {
+				Operator operator = ((UnaryNode) link).getOperator();
+				if (operator.isPure() && isLiteral(left)) {
+					return new ValueNode(operator.compute(((ValueNode) left).getValue()));
+				}
+			} else {
+				Operator operator = ((BinaryNode) link).getOperator();
+				if (operator.isPure() && isLiteral(left) && isLiteral(after)) {
+					return new ValueNode(operator.compute(((ValueNode) left).getValue(), ((ValueNode) after).getValue()));
+				}
+			}
+		} catch (InterpreterException err) {
+			/* Left for execution, where the error is reported in order. */
+		}
+		return rebuild(link, left, after);
+	}
+
+	private static boolean isLiteral(Node node) {
+		return node instanceof ValueNode && !isComposite(((ValueNode) node).getValue());
+	}
+
+	private static boolean allValues(Node[] statements) {
+		for (Node statement : statements) {
+			if (!(statement instanceof ValueNode)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Unused statements */
+
+	/**
+	 * Walks the block backwards, keeping track of the variables a later
+	 * statement overwrites before anything reads them. Statements that are
+	 * not pure end the run, as they might read any variable or fail before
+	 * the store that overwrites.
+	 */
+	static Node[] dropUnused(Node[] statements) {
+		boolean[] dropped = new boolean[statements.length];
+		HashSet<Integer> overwritten = new HashSet<>();
+		for (int i = statements.length - 1; i >= 0; i--) {
+			Node statement = statements[i];
+			VariableNode target = store(statement);
+			if (target != null) {
+				if (overwritten.contains(target.getSymbol())) {
+					dropped[i] = true;
+				} else {
+					overwritten.add(target.getSymbol());
+					overwritten.removeAll(reads(((BinaryNode) statement).getAfter(), new HashSet<Integer>()));
+				}
+			} else if (!isPure(statement)) {
+				overwritten.clear();
+			} else if (i != statements.length - 1) {
+				dropped[i] = true;
+			} else {
+				overwritten.removeAll(reads(statement, new HashSet<Integer>()));
+			}
+		}
+		ArrayList<Node> used = new ArrayList<>(statements.length);
+		for (int i = 0; i != statements.length; i++) {
+			if (!dropped[i]) {
+				used.add(dropUnused(statements[i]));
+			}
+		}
+		return used.toArray(new Node[used.size()]);
+	}
+
+	/* The variable a plain assignment of a pure value stores to, or null. */
+	private static VariableNode store(Node statement) {
+		if (!(statement instanceof BinaryNode)) {
+			return null;
+		}
+		BinaryNode binary = (BinaryNode) statement;
+		if (!binary.getOperator().assigns() || !binary.getOperator().getSymbol().equals("=") || !isPure(binary.getAfter())) {
+			return null;
+		}
+		return (VariableNode) binary.getBefore();
+	}
+
+	/* Adds the symbols of the variables the pure node reads. */
+	private static HashSet<Integer> reads(Node node, HashSet<Integer> symbols) {
+		if (node instanceof VariableNode) {
+			symbols.add(((VariableNode) node).getSymbol());
+		} else if (node instanceof WrapperNode) {
+			for (Node statement : ((WrapperNode) node).getStatements()) {
+				reads(statement, symbols);
+			}
+		} else if (node instanceof UnaryNode || node instanceof BinaryNode) {
+			Node[] spine = Node.spine(node);
+			for (Node link : spine) {
+				if (link instanceof BinaryNode) {
+					reads(((BinaryNode) link).getAfter(), symbols);
+				}
+			}
+			reads(Node.left(spine[spine.length - 1]), symbols);
+		}
+		return symbols;
+	}
+
+	private static Node dropUnused(Node node) {
+		if (node instanceof WrapperNode) {
+			WrapperNode wrapper = (WrapperNode) node;
+			return new WrapperNode(wrapper.getWrapper(), dropUnused(wrapper.getStatements()));
+		}
+		if (node instanceof UnaryNode || node instanceof BinaryNode) {
+			Node[] spine = Node.spine(node);
+			Node left = dropUnused(Node.left(spine[spine.length - 1]));
+			for (int i = spine.length - 1; i >= 0; i--) {
+				Node after = spine[i] instanceof BinaryNode ? dropUnused(((BinaryNode) spine[i]).getAfter()) : null;
+				left = rebuild(spine[i], left, after);
+			}
+			return left;
+		}
+		return node;
+	}
+
+	/* Common subexpressions */
+
+	static Node[] shareCommon(Node[] statements) {
+		Node[] shared = new Node[statements.length];
+		for (int i = 0; i != statements.length; i++) {
+			shared[i] = share(statements[i]);
+		}
+		return shared;
+	}
+
+	private static Node share(Node node) {
+		if (node instanceof UnaryNode || node instanceof BinaryNode) {
+			/* The largest pure run at the bottom of the spine is one expression. */
+			Node[] spine = Node.spine(node);
+			Node bottom = Node.left(spine[spine.length - 1]);
+			int pure = isPure(bottom) ? spine.length : -1;
+			while (pure > 0 && isPureLink(spine[pure - 1])) {
+				pure--;
+			}
+			if (pure == 0) {
+				return new Expression(node).share();
+			}
+			Node left = pure == -1 ? share(bottom) : new Expression(pure == spine.length ? bottom : spine[pure]).share();
+			for (int i = (pure == -1 ? spine.length : pure) - 1; i >= 0; i--) {
+				Node after = spine[i] instanceof BinaryNode ? share(((BinaryNode) spine[i]).getAfter()) : null;
+				left = rebuild(spine[i], left, after);
+			}
+			return left;
+		}
+		if (isPure(node)) {
+			return new Expression(node).share();
+		}
+		if (node instanceof WrapperNode) {
+			WrapperNode wrapper = (WrapperNode) node;
+			return new WrapperNode(wrapper.getWrapper(), shareCommon(wrapper.getStatements()));
+		}
+		return node;
+	}
+
+	/**
+	 * A maximal pure expression. Every subexpression is numbered so that
+	 * structurally equal ones get the same number; the numbers seen more than
+	 * once are given a slot.
+	 */
+	private static class Expression {
+		private final Node root;
+		private final IdentityHashMap<Operator, Integer> operators = new IdentityHashMap<>();
+		private final HashMap<String, Integer> numbers = new HashMap<>();
+		private final IdentityHashMap<Node, Integer> numbered = new IdentityHashMap<>();
+		private final List<Integer> counts = new ArrayList<>();
+		private final HashMap<Integer, Integer> slots = new HashMap<>();
+
+		Expression(Node root) {
+			this.root = root;
+		}
+
+		Node share() {
+			number(root);
+			Node shared = rewrite(root);
+			return slots.isEmpty() ? root : new CommonScope(shared, slots.size());
+		}
+
+		private int number(Node node) {
+			String key;
+			if (node instanceof ValueNode) {
+				GenericVar value = ((ValueNode) node).getValue();
+				key = "v" + value.getType() + ":" + value.get();
+			} else if (node instanceof VariableNode) {
+				key = "n" + ((VariableNode) node).getName();
+			} else if (node instanceof WrapperNode) {
+				WrapperNode wrapper = (WrapperNode) node;
+				StringBuilder str = new StringBuilder("w").append(operator(wrapper.getWrapper()));
+				for (Node statement : wrapper.getStatements()) {
+					str.append(',').append(number(statement));
+				}
+				key = str.toString();
+			} else {
+				Node[] spine = Node.spine(node);
+				int number = number(Node.left(spine[spine.length - 1]));
+				for (int i = spine.length - 1; i >= 0; i--) {
+					if (spine[i] instanceof UnaryNode) {
+						key = "u" + operator(((UnaryNode) spine[i]).getOperator()) + "," + number;
+					} else {
+						BinaryNode binary = (BinaryNode) spine[i];
+						key = "b" + operator(binary.getOperator()) + "," + number + "," + number(binary.getAfter());
+					}
+					number = number(spine[i], key);
+				}
+				return number;
+			}
+			return number(node, key);
+		}
+
+		/* Numbers the node whose structure the key spells out. */
+		private int number(Node node, String key) {
+			Integer number = numbers.get(key);
+			if (number == null) {
+				number = counts.size();
+				numbers.put(key, number);
+				counts.add(0);
+			}
+			counts.set(number, counts.get(number) + 1);
+			numbered.put(node, number);
+			return number;
+		}
+
+		private int operator(Operator operator) {
+			Integer id = operators.get(operator);
+			if (id == null) {
+				id = operators.size();
+				operators.put(operator, id);
+			}
+			return id;
+		}
+
+		private Node rewrite(Node node) {
+			Node rewritten;
+			if (node instanceof WrapperNode) {
+				WrapperNode wrapper = (WrapperNode) node;
+				Node[] statements = new Node[wrapper.getStatements().length];
+				for (int i = 0; i != statements.length; i++) {
+					statements[i] = rewrite(wrapper.getStatements()[i]);
+				}
+				rewritten = new WrapperNode(wrapper.getWrapper(), statements);
+			} else if (node instanceof UnaryNode || node instanceof BinaryNode) {
+				Node[] spine = Node.spine(node);
+				Node left = rewrite(Node.left(spine[spine.length - 1]));
+				for (int i = spine.length - 1; i >= 0; i--) {
+					Node after = spine[i] instanceof BinaryNode ? rewrite(((BinaryNode) spine[i]).getAfter()) : null;
+					left = rewrite(spine[i], rebuild(spine[i], left, after));
+				}
+				return left;
+			} else {
+				/* Literals and variables are cheaper to evaluate than to share. */
+				return node;
+			}
+			return rewrite(node, rewritten);
+		}
+
+		/* Shares the rewritten node if its structure is seen more than once. */
+		private Node rewrite(Node node, Node rewritten) {
+			int number = numbered.get(node);
+			if (counts.get(number) < 2) {
+				return rewritten;
+			}
+			Integer slot = slots.get(number);
+			if (slot == null) {
+				slot = slots.size();
+				slots.put(number, slot);
+			}
+			return new CommonNode(rewritten, slot);
+		}
+	}
+}
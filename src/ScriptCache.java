@@ -0,0 +1,187 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of compiled scripts keyed by the operators they were compiled
+ * with and their source. Entries weigh the length of their source, and the
+ * least recently used ones are evicted once the total weight goes over the
+ * limit.
+ *
+ * The cache is split into independently locked segments so threads looking
+ * up different sources rarely wait on each other. The limit is on the
+ * weight of all segments together: an entry that takes the total over it
+ * evicts the least recently used entries of its own segment, then those of
+ * the others, so one source may weigh up to the whole limit.
+ */
+
+class ScriptCache {
+	static final long DEFAULT_MAX_WEIGHT = 1 << 22;
+
+	private static class Key {
+		private final OperatorStore operators;
+		private final String source;
+		private final int hash;
+
+		Key(OperatorStore operators, String source) {
+			this.operators = operators;
+			this.source = source;
+			this.hash = System.identityHashCode(operators) * 31 + source.hashCode();
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return operators == key.operators && source.equals(key.source);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private class Segment {
+		private final LinkedHashMap<Key, CompiledScript> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+		synchronized CompiledScript get(Key key) {
+			return entries.get(key);
+		}
+
+		synchronized void put(Key key, CompiledScript script) {
+			if (entries.put(key, script) == null) {
+				totalWeight.addAndGet(key.source.length());
+			}
+		}
+
+		/**
+		 * Evicts the least recently used entries until the cache is back
+		 * under its limit, keeping the keep most recent ones.
+		 */
+		synchronized void evict(int keep) {
+			Iterator<Map.Entry<Key, CompiledScript>> eldest = entries.entrySet().iterator();
+			while (totalWeight.get() > maxWeight && entries.size() > keep) {
+				long entryWeight = eldest.next().getKey().source.length();
+				eldest.remove();
+				totalWeight.addAndGet(-entryWeight);
+				evictions.increment();
+			}
+		}
+
+		synchronized void invalidate(OperatorStore operators) {
+			Iterator<Key> keys = entries.keySet().iterator();
+			while (keys.hasNext()) {
+				Key key = keys.next();
+				if (operators == null || key.operators == operators) {
+					totalWeight.addAndGet(-key.source.length());
+					keys.remove();
+				}
+			}
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+
+	private final Segment[] segments;
+	private final long maxWeight;
+	private final AtomicLong totalWeight = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	ScriptCache() {
+		this(DEFAULT_MAX_WEIGHT);
+	}
+
+	ScriptCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+		int count = 1;
+		while (count < 4 * Runtime.getRuntime().availableProcessors() && count < 64) {
+			count <<= 1;
+		}
+		segments = new Segment[count];
+		for (int i = 0; i != count; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private int segment(Key key) {
+		int hash = key.hash ^ (key.hash >>> 16);
+		return hash & (segments.length - 1);
+	}
+
+	/**
+	 * Returns the script compiled from the source with the operators, or null
+	 * if it is not cached.
+	 */
+	CompiledScript get(OperatorStore operators, String source) {
+		Key key = new Key(operators, source);
+		CompiledScript script = segments[segment(key)].get(key);
+		if (script == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return script;
+	}
+
+	void put(OperatorStore operators, String source, CompiledScript script) {
+		if (source.length() > maxWeight) {
+			return;
+		}
+		Key key = new Key(operators, source);
+		int index = segment(key);
+		segments[index].put(key, script);
+		/* One segment is locked at a time, the new entry kept in its own. */
+		for (int i = 0; i != segments.length && totalWeight.get() > maxWeight; i++) {
+			segments[(index + i) & (segments.length - 1)].evict(i == 0 ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Drops the scripts compiled with the given operators, to be called once
+	 * the operator set they were compiled against is no longer in use.
+	 */
+	void invalidate(OperatorStore operators) {
+		for (Segment segment : segments) {
+			segment.invalidate(operators);
+		}
+	}
+
+	void invalidateAll() {
+		invalidate(null);
+	}
+
+	long getHitCount() {
+		return hits.sum();
+	}
+
+	long getMissCount() {
+		return misses.sum();
+	}
+
+	long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	long weight() {
+		return totalWeight.get();
+	}
+
+	public String toString() {
+		return "ScriptCache[hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + ", size=" + size() + "]";
+	}
+}
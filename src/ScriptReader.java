@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a script from a Reader one statement at a time. Only the statement
+ * currently being read is buffered, so memory stays flat however large the
+ * input is.
+ */
+
+class ScriptReader {
+	private static final int CHUNK_SIZE = 8192;
+
+	private final Interpreter interpreter;
+	private final Reader reader;
+	private final char[] chunk = new char[CHUNK_SIZE];
+	private final StringBuilder buffer = new StringBuilder();
+	private final ArrayDeque<CompiledScript> pending = new ArrayDeque<>();
+	private InterpreterException error = null;
+	private boolean eof = false;
+
+	/*
+	 * How far the buffer has been scanned for a terminator, with the wrappers
+	 * open at that point: the close symbols of those whose content is parsed,
+	 * and the one whose content is literal text.
+	 */
+	private int scanned = 0;
+	private final ArrayDeque<String> closes = new ArrayDeque<>();
+	private Operator literal = null;
+
+	ScriptReader(Interpreter interpreter, Reader reader) {
+		this.interpreter = interpreter;
+		this.reader = reader;
+	}
+
+	/**
+	 * Returns the next statement as soon as its terminator has been read, or
+	 * null once the input is exhausted. A parse error is thrown after the
+	 * statements preceding it have been returned.
+	 */
+	CompiledScript next() throws IOException, InterpreterException {
+		while (pending.isEmpty()) {
+			if (error != null) {
+				throw error;
+			}
+			if (eof) {
+				return null;
+			}
+			if (mayEnd()) {
+				compileBuffered();
+			} else {
+				int read = reader.read(chunk);
+				if (read == -1) {
+					eof = true;
+					compileBuffered();
+				} else {
+					buffer.append(chunk, 0, read);
+				}
+			}
+		}
+		return pending.poll();
+	}
+
+	/**
+	 * Scans the text read since the last call for a terminator outside any
+	 * wrapper, where the pending statement can have ended. Each character is
+	 * scanned once, so a long statement is only parsed when it may be whole
+	 * rather than once per read.
+	 */
+	private boolean mayEnd() {
+		OperatorStore operators = interpreter.getOperators();
+		for (int i = scanned, KLength = buffer.length(); i < KLength; i++) {
+			char c = buffer.charAt(i);
+			boolean terminator = c == '\n' || c == ';';
+			if (literal != null) {
+				String close = literal.getSecondSymbol();
+				if (terminator && (c == '\n' ? literal.breakOnNewline() : literal.breakOnSemicolon())) {
+					scanned = i + 1;
+					return true;
+				}
+				if (startsWith(close, i)) {
+					literal = null;
+					i += close.length() - 1;
+				}
+			} else if (!closes.isEmpty() && startsWith(closes.peek(), i)) {
+				i += closes.pop().length() - 1;
+			} else if (terminator && closes.isEmpty()) {
+				scanned = i + 1;
+				return true;
+			} else {
+				List<Operator> supported = operators.get(buffer, i);
+				int maxOpLength = 1;
+				for (Operator operator : supported) {
+					if (operator.getOperatorType() == OperatorType.wrapper) {
+						if (operator.parsesContent()) {
+							closes.push(operator.getSecondSymbol());
+						} else {
+							literal = operator;
+						}
+						maxOpLength = operator.getSymbol().length();
+						break;
+					}
+					maxOpLength = Math.max(maxOpLength, operator.getSymbol().length());
+				}
+				i += maxOpLength - 1;
+			}
+		}
+		scanned = buffer.length();
+		return false;
+	}
+
+	private boolean startsWith(String symbol, int index) {
+		if (index + symbol.length() > buffer.length()) {
+			return false;
+		}
+		for (int i = 0; i != symbol.length(); i++) {
+			if (buffer.charAt(index + i) != symbol.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void compileBuffered() {
+		String text = buffer.toString();
+		ArrayList<Node> statements = new ArrayList<>();
+		Symbols symbols = new Symbols();
+		int index = 0;
+		try {
+			while (index < text.length()) {
+				int end = interpreter.compileStatement(text, index, statements, symbols, !eof);
+				if (end == -1) {
+					break;
+				}
+				index = end + 1;
+			}
+			if (index != 0) {
+				buffer.delete(0, Math.min(index, text.length()));
+				/* The rest starts a new statement: scan it afresh. */
+				scanned = 0;
+				closes.clear();
+				literal = null;
+			}
+		} catch (InterpreterException err) {
+			error = err;
+			buffer.setLength(0);
+		}
+		/* Statements read together share their symbols, and so one binding. */
+		String[] shared = symbols.toArray();
+		for (Node statement : statements) {
+			pending.add(new CompiledScript(Optimizer.optimize(new Node[] {statement}), shared));
+		}
+	}
+}
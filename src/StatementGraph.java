@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Order the statements of a script must keep, for the parallel engine. A
+ * statement depends on the earlier statements that write a variable it reads
+ * or writes, and on those that read a variable it writes; statements with no
+ * path between them run concurrently on the common fork-join pool.
+ *
+ * The variables a statement touches are the ones it names, so operators that
+ * reach other variables through the context are not accounted for. Every
+ * statement sees the same frame, the context being bound beforehand so that
+ * the frame does not change while the statements run.
+ *
+ * When a statement fails, the variables are put back as they were and the
+ * script runs again in order, which stops at the same statement with the
+ * same error and the same variables as the sequential run.
+ */
+
+final class StatementGraph {
+	/* Smaller scripts run faster in order than as tasks. */
+	private static final int KMinNodes = 256;
+
+	private final int[][] mSuccessors;
+	private final int[] mPredecessors;
+	private final int[] mSources;
+
+	private StatementGraph(int[][] successors, int[] predecessors, int[] sources) {
+		this.mSuccessors = successors;
+		this.mPredecessors = predecessors;
+		this.mSources = sources;
+	}
+
+	/**
+	 * Returns null when no two statements can run concurrently, when the
+	 * script is too small to gain from it, or when a statement contains a node
+	 * whose variables cannot be told.
+	 */
+	static StatementGraph build(Node[] statements) {
+		int count = statements.length;
+		if (count < 2) {
+			return null;
+		}
+		ArrayList<ArrayList<Integer>> successors = new ArrayList<>(count);
+		int[] predecessors = new int[count];
+		int[] depth = new int[count];
+		int[] linked = new int[count];
+		Arrays.fill(linked, -1);
+		ArrayList<Integer> writers = new ArrayList<>();
+		ArrayList<ArrayList<Integer>> readers = new ArrayList<>();
+		int longest = 0;
+		int nodes = 0;
+		for (int i = 0; i != count; i++) {
+			ArrayList<Integer> reads = new ArrayList<>();
+			ArrayList<Integer> writes = new ArrayList<>();
+			int size = access(statements[i], reads, writes);
+			if (size == -1) {
+				return null;
+			}
+			nodes += size;
+			successors.add(new ArrayList<Integer>());
+			for (int symbol : reads) {
+				grow(writers, readers, symbol);
+				link(successors, predecessors, depth, linked, writers.get(symbol), i);
+			}
+			for (int symbol : writes) {
+				grow(writers, readers, symbol);
+				link(successors, predecessors, depth, linked, writers.get(symbol), i);
+				for (int reader : readers.get(symbol)) {
+					link(successors, predecessors, depth, linked, reader, i);
+				}
+			}
+			for (int symbol : writes) {
+				writers.set(symbol, i);
+				readers.get(symbol).clear();
+			}
+			for (int symbol : reads) {
+				if (writers.get(symbol) != i) {
+					readers.get(symbol).add(i);
+				}
+			}
+			longest = Math.max(longest, depth[i]);
+		}
+		if (longest == count - 1 || nodes < KMinNodes) {
+			return null;
+		}
+		int[][] successorArrays = new int[count][];
+		ArrayList<Integer> sources = new ArrayList<>();
+		for (int i = 0; i != count; i++) {
+			ArrayList<Integer> next = successors.get(i);
+			successorArrays[i] = new int[next.size()];
+			for (int ii = 0; ii != next.size(); ii++) {
+				successorArrays[i][ii] = next.get(ii);
+			}
+			if (predecessors[i] == 0) {
+				sources.add(i);
+			}
+		}
+		int[] sourceArray = new int[sources.size()];
+		for (int i = 0; i != sourceArray.length; i++) {
+			sourceArray[i] = sources.get(i);
+		}
+		return new StatementGraph(successorArrays, predecessors, sourceArray);
+	}
+
+	private static void grow(ArrayList<Integer> writers, ArrayList<ArrayList<Integer>> readers, int symbol) {
+		while (writers.size() <= symbol) {
+			writers.add(-1);
+			readers.add(new ArrayList<Integer>());
+		}
+	}
+
+	/* linked[from] == to once the edge exists, so each edge is added once. */
+	private static void link(ArrayList<ArrayList<Integer>> successors, int[] predecessors, int[] depth, int[] linked, int from, int to) {
+		if (from == -1 || from == to || linked[from] == to) {
+			return;
+		}
+		linked[from] = to;
+		successors.get(from).add(to);
+		predecessors[to]++;
+		depth[to] = Math.max(depth[to], depth[from] + 1);
+	}
+
+	/**
+	 * Adds the symbols the node reads and those it assigns, and returns the
+	 * number of nodes; -1 if the node is of a kind whose variables are not
+	 * known.
+	 */
+	private static int access(Node node, ArrayList<Integer> reads, ArrayList<Integer> writes) {
+		if (node instanceof ValueNode) {
+			return 1;
+		}
+		if (node instanceof VariableNode) {
+			reads.add(((VariableNode) node).getSymbol());
+			return 1;
+		}
+		if (node instanceof WrapperNode) {
+			int size = 1;
+			for (Node statement : ((WrapperNode) node).getStatements()) {
+				int statementSize = access(statement, reads, writes);
+				if (statementSize == -1) {
+					return -1;
+				}
+				size += statementSize;
+			}
+			return size;
+		}
+		if (node instanceof UnaryNode || node instanceof BinaryNode) {
+			/* Down the left operands in a loop, a chain of them is as deep as it is long. */
+			Node[] spine = Node.spine(node);
+			int size = spine.length;
+			for (Node link : spine) {
+				if (link instanceof UnaryNode) {
+					UnaryNode unary = (UnaryNode) link;
+					if (unary.getOperator().assigns()) {
+						writes.add(((VariableNode) unary.getOperand()).getSymbol());
+					}
+				} else {
+					BinaryNode binary = (BinaryNode) link;
+					if (binary.getOperator().assigns()) {
+						writes.add(((VariableNode) binary.getBefore()).getSymbol());
+					}
+					int after = access(binary.getAfter(), reads, writes);
+					if (after == -1) {
+						return -1;
+					}
+					size += after;
+				}
+			}
+			int left = access(Node.left(spine[spine.length - 1]), reads, writes);
+			return left == -1 ? -1 : size + left;
+		}
+		if (node instanceof CommonScope) {
+			return access(((CommonScope) node).getExpression(), reads, writes);
+		}
+		if (node instanceof CommonNode) {
+			return access(((CommonNode) node).getExpression(), reads, writes);
+		}
+		return -1;
+	}
+
+	/**
+	 * Runs the statements against the bound context and returns the value of
+	 * the last one, as Node.run does.
+	 */
+	GenericVar run(Node[] statements, ExecutionContext context) throws InterpreterException {
+		GenericVar[] saved = context.save();
+		Execution execution = new Execution(statements, context);
+		execution.invoke();
+		if (execution.mFailed) {
+			context.restore(saved);
+			return Node.run(statements, context);
+		}
+		return execution.mResults[statements.length - 1];
+	}
+
+	/* Completes once every statement has. */
+	private final class Execution extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 0;
+		private final Node[] mStatements;
+		private final ExecutionContext mContext;
+		private final GenericVar[] mResults;
+		private final AtomicIntegerArray mWaiting;
+		private volatile boolean mFailed = false;
+
+		Execution(Node[] statements, ExecutionContext context) {
+			this.mStatements = statements;
+			this.mContext = context;
+			this.mResults = new GenericVar[statements.length];
+			this.mWaiting = new AtomicIntegerArray(mPredecessors);
+		}
+
+		public void compute() {
+			setPendingCount(mStatements.length);
+			for (int source : mSources) {
+				new Step(this, source).fork();
+			}
+			tryComplete();
+		}
+	}
+
+	/* Runs one statement, then the successors it was the last one holding. */
+	private final class Step extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 0;
+		private final Execution mExecution;
+		private final int mIndex;
+
+		Step(Execution execution, int index) {
+			super(execution);
+			this.mExecution = execution;
+			this.mIndex = index;
+		}
+
+		public void compute() {
+			Execution execution = mExecution;
+			if (!execution.mFailed) {
+				try {
+					execution.mResults[mIndex] = execution.mStatements[mIndex].evaluate(execution.mContext.view());
+				} catch (InterpreterException | RuntimeException | Error err) {
+					execution.mFailed = true;
+				}
+			}
+			for (int next : mSuccessors[mIndex]) {
+				if (execution.mWaiting.decrementAndGet(next) == 0) {
+					new Step(execution, next).fork();
+				}
+			}
+			tryComplete();
+		}
+	}
+}